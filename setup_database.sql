@@ -13,7 +13,7 @@ CREATE TABLE IF NOT EXISTS users (
     phone_number VARCHAR(20),
     name VARCHAR(100) NOT NULL,
     password VARCHAR(100) NOT NULL,
-    balance INT DEFAULT 0,
+    balance DECIMAL(19,2) DEFAULT 0.00,
     role VARCHAR(20) DEFAULT 'user'
 );
 
@@ -0,0 +1,121 @@
+package algorithm;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionControl
+ *
+ * Decides which inbound peer messages a node takes on when it is busy.
+ * - CONTROL (REQUEST, REPLY, HEARTBEAT[_ACK], quorum mutex messages): always
+ * admitted, never shed.
+ * - REPLICATION (REPLICATE_*): always admitted; an overloaded connection is
+ * slowed down by PeerListener (reads paused) instead of dropping writes.
+ * - BULK (SYNC_REQUEST, QUERY_TRANSACTION_LOGS): full DB dumps. At most
+ * admission.maxBulk run at once; extra requests are shed with a BUSY reply
+ * and the asking node retries on its next sync round.
+ * - Counters for admitted / rejected messages per lane.
+ */
+public class AdmissionControl {
+
+    public enum Lane {
+        CONTROL, REPLICATION, BULK, OTHER
+    }
+
+    private final Semaphore bulkPermits;
+    private final AtomicLong[] admitted = new AtomicLong[Lane.values().length];
+    private final AtomicLong[] rejected = new AtomicLong[Lane.values().length];
+
+    public AdmissionControl(int maxBulk) {
+        this.bulkPermits = new Semaphore(Math.max(1, maxBulk));
+        for (int i = 0; i < admitted.length; i++) {
+            admitted[i] = new AtomicLong();
+            rejected[i] = new AtomicLong();
+        }
+    }
+
+    public static Lane laneOf(byte type) {
+        switch (type) {
+            case PeerMessage.REQUEST:
+            case PeerMessage.REPLY:
+            case PeerMessage.HEARTBEAT:
+            case PeerMessage.HEARTBEAT_ACK:
+            case PeerMessage.QUORUM_REQUEST:
+            case PeerMessage.GRANT:
+            case PeerMessage.RELEASE:
+            case PeerMessage.INQUIRE:
+            case PeerMessage.YIELD:
+            case PeerMessage.FAILED:
+                return Lane.CONTROL;
+            case PeerMessage.REPLICATE_CREATE:
+            case PeerMessage.REPLICATE_UPDATE:
+            case PeerMessage.REPLICATE_PASSWORD_UPDATE:
+            case PeerMessage.REPLICATE_LOG:
+            case PeerMessage.REPLICATE_OP:
+            case PeerMessage.REPLICATE_STREAM:
+            case PeerMessage.REPLICATE_ACK:
+                return Lane.REPLICATION;
+            case PeerMessage.SYNC_REQUEST:
+            case PeerMessage.QUERY_TRANSACTION_LOGS:
+                return Lane.BULK;
+            default:
+                return Lane.OTHER;
+        }
+    }
+
+    /**
+     * True for lock-control traffic (REQUEST, REPLY, HEARTBEAT), including
+     * legacy text lines, which are classified by prefix without parsing.
+     */
+    public static boolean isControl(PeerMessage message) {
+        if (message.type == PeerMessage.TEXT) {
+            String line = message.arg(0, "");
+            if (line.startsWith("REQUEST:") || line.startsWith("REPLY:") || line.startsWith("HEARTBEAT:"))
+                return true;
+            for (byte type = PeerMessage.QUORUM_REQUEST; type <= PeerMessage.HEARTBEAT_ACK; type++) {
+                if (line.startsWith(PeerMessage.typeName(type) + ":"))
+                    return true;
+            }
+            return false;
+        }
+        return laneOf(message.type) == Lane.CONTROL;
+    }
+
+    /**
+     * Try to admit a message. A true result for a BULK message holds a permit
+     * that must be given back with {@link #release(Lane)}.
+     */
+    public boolean tryAdmit(Lane lane) {
+        if (lane == Lane.BULK && !bulkPermits.tryAcquire()) {
+            rejected[lane.ordinal()].incrementAndGet();
+            return false;
+        }
+        admitted[lane.ordinal()].incrementAndGet();
+        return true;
+    }
+
+    public void release(Lane lane) {
+        if (lane == Lane.BULK)
+            bulkPermits.release();
+    }
+
+    public long admittedCount(Lane lane) {
+        return admitted[lane.ordinal()].get();
+    }
+
+    public long rejectedCount(Lane lane) {
+        return rejected[lane.ordinal()].get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("admission[");
+        for (Lane lane : Lane.values()) {
+            if (lane.ordinal() > 0)
+                sb.append(", ");
+            sb.append(lane).append(" ok=").append(admittedCount(lane))
+                    .append(" shed=").append(rejectedCount(lane));
+        }
+        return sb.append("]").toString();
+    }
+}
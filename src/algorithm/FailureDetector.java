@@ -0,0 +1,234 @@
+package algorithm;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FailureDetector
+ *
+ * Phi-accrual failure detector that keeps a live/suspect/dead view of peers.
+ * - Fed with the peer's HEARTBEAT arrivals only (every fd.heartbeatMs). Other
+ * traffic comes in bursts; its near-zero gaps would fill the window and make
+ * the normal heartbeat gap look like a failure.
+ * - phi grows with the time since the last heartbeat, relative to the
+ * observed inter-arrival distribution (Hayashibara et al.).
+ * - A failed send alone never makes a peer DEAD (a connect timeout may just be
+ * a slow or briefly partitioned peer): only silence does, through phi. A
+ * peer never heard from is timed from its first failed send instead.
+ * - A peer becomes LIVE again as soon as anything is heard from it.
+ * - DEAD is only a suspicion (a GC pause or partition looks the same).
+ * isConfirmedDown() additionally needs connections to have been refused
+ * (host up, nothing listening) for fd.confirmDownMs: only then may lock
+ * rounds leave the peer out.
+ */
+public class FailureDetector {
+
+    public enum State {
+        LIVE, SUSPECT, DEAD
+    }
+
+    private static final int WINDOW = 100; // Inter-arrival samples kept per peer
+    private static final double MIN_STD_DEV_MS = 100.0;
+
+    private final int ownerId;
+    private final long heartbeatMs;
+    private final double suspectPhi;
+    private final double deadPhi;
+    private final long confirmDownMs;
+    private final ConcurrentHashMap<Integer, History> peers = new ConcurrentHashMap<>();
+
+    public FailureDetector(int ownerId, Collection<Integer> peerIds, long heartbeatMs,
+            double suspectPhi, double deadPhi, long confirmDownMs) {
+        this.ownerId = ownerId;
+        this.heartbeatMs = heartbeatMs;
+        this.suspectPhi = suspectPhi;
+        this.deadPhi = deadPhi;
+        this.confirmDownMs = confirmDownMs;
+        for (int peerId : peerIds) {
+            if (peerId != ownerId)
+                peers.put(peerId, new History());
+        }
+    }
+
+    /**
+     * Record that a HEARTBEAT arrived from a peer.
+     */
+    public void heartbeat(int peerId) {
+        History h = peers.get(peerId);
+        if (h == null)
+            return;
+        synchronized (h) {
+            long now = System.nanoTime();
+            if (h.lastArrival >= 0) {
+                h.add((now - h.lastArrival) / 1_000_000.0);
+            }
+            h.lastArrival = now;
+            h.failingSince = -1;
+            h.refusedSince = -1;
+            logTransition(peerId, h);
+        }
+    }
+
+    /**
+     * Record the outcome of a connection attempt to a peer. Only refusals in
+     * a row count towards a confirmed crash; a timeout (possibly a partition)
+     * or a successful connect starts the confirmation over.
+     */
+    public void connectResult(int peerId, boolean connected, boolean refused) {
+        History h = peers.get(peerId);
+        if (h == null)
+            return;
+        synchronized (h) {
+            if (connected || !refused)
+                h.refusedSince = -1;
+            else if (h.refusedSince < 0)
+                h.refusedSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Record that a send to a peer failed (connection refused / timeout).
+     * Only matters for a peer never heard from; otherwise phi decides.
+     */
+    public void unreachable(int peerId) {
+        History h = peers.get(peerId);
+        if (h == null)
+            return;
+        synchronized (h) {
+            if (h.failingSince < 0)
+                h.failingSince = System.nanoTime();
+            logTransition(peerId, h);
+        }
+    }
+
+    public State state(int peerId) {
+        History h = peers.get(peerId);
+        if (h == null)
+            return State.LIVE;
+        synchronized (h) {
+            return evaluate(h);
+        }
+    }
+
+    /**
+     * True unless the peer is believed DEAD.
+     */
+    public boolean isAvailable(int peerId) {
+        return state(peerId) != State.DEAD;
+    }
+
+    /**
+     * True if the peer is DEAD and every connection attempt for at least
+     * fd.confirmDownMs was refused: the process is gone, so it holds no lock.
+     */
+    public boolean isConfirmedDown(int peerId) {
+        History h = peers.get(peerId);
+        if (h == null)
+            return false;
+        synchronized (h) {
+            return evaluate(h) == State.DEAD && h.refusedSince >= 0
+                    && (System.nanoTime() - h.refusedSince) / 1_000_000L >= confirmDownMs;
+        }
+    }
+
+    /**
+     * Re-evaluate every peer (called from the heartbeat loop) so state
+     * changes are logged even when nobody is asking.
+     */
+    public void refresh() {
+        for (java.util.Map.Entry<Integer, History> e : peers.entrySet()) {
+            synchronized (e.getValue()) {
+                logTransition(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Milliseconds since anything was heard from the peer, or -1 if never.
+     */
+    public long millisSinceHeard(int peerId) {
+        History h = peers.get(peerId);
+        if (h == null)
+            return -1;
+        synchronized (h) {
+            return (h.lastArrival < 0) ? -1 : (System.nanoTime() - h.lastArrival) / 1_000_000L;
+        }
+    }
+
+    public double phi(int peerId) {
+        History h = peers.get(peerId);
+        if (h == null)
+            return 0.0;
+        synchronized (h) {
+            return computePhi(h, h.lastArrival);
+        }
+    }
+
+    private State evaluate(History h) {
+        long since = h.lastArrival;
+        if (since < 0) {
+            // Never heard from it yet: optimistic until sends have failed for
+            // as long as a known peer may stay silent
+            if (h.failingSince < 0)
+                return State.LIVE;
+            since = h.failingSince;
+        }
+        double phi = computePhi(h, since);
+        if (phi >= deadPhi)
+            return State.DEAD;
+        if (phi >= suspectPhi)
+            return State.SUSPECT;
+        return State.LIVE;
+    }
+
+    private double computePhi(History h, long since) {
+        if (since < 0)
+            return 0.0;
+        double elapsed = (System.nanoTime() - since) / 1_000_000.0;
+        double mean = (h.count > 0) ? h.sum / h.count : heartbeatMs;
+        double variance = (h.count > 0) ? (h.sumSq / h.count) - (mean * mean) : 0.0;
+        double stdDev = Math.max(Math.sqrt(Math.max(variance, 0.0)), MIN_STD_DEV_MS);
+
+        // Logistic approximation of the normal CDF
+        double y = (elapsed - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean)
+            return -Math.log10(e / (1.0 + e));
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    private void logTransition(int peerId, History h) {
+        State now = evaluate(h);
+        if (now != h.lastState) {
+            System.out.println("Node " + ownerId + " FAILURE DETECTOR: Node " + peerId + " " + h.lastState
+                    + " -> " + now);
+            h.lastState = now;
+        }
+    }
+
+    private static final class History {
+        final double[] intervals = new double[WINDOW];
+        int count;
+        int next;
+        double sum;
+        double sumSq;
+        long lastArrival = -1;
+        long failingSince = -1; // First failed send since last heard from (nanoTime)
+        long refusedSince = -1; // First of the refused connects in a row (nanoTime)
+        State lastState = State.LIVE;
+
+        void add(double interval) {
+            if (count == WINDOW) {
+                double old = intervals[next];
+                sum -= old;
+                sumSq -= old * old;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumSq += interval * interval;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package algorithm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * HybridClock
+ *
+ * Hybrid logical clock (Kulkarni et al.) used to stamp transactions.
+ * - A stamp is one long: wall-clock millis in the high 48 bits, a logical
+ * counter in the low 16 bits. Stamps stay close to real time but never go
+ * backwards and always advance past anything received from a peer.
+ * - (hlc, nodeId) is a cluster-wide total order: sort by hlc, break ties by
+ * node id. Every node assigns unique stamps, so (nodeId, hlc) also
+ * identifies a transaction row.
+ * - Updates are a single atomic accumulate, safe from any thread.
+ */
+public final class HybridClock {
+
+    private static final int LOGICAL_BITS = 16;
+    private static final long LOGICAL_MASK = (1L << LOGICAL_BITS) - 1;
+
+    private final AtomicLong last = new AtomicLong();
+    private final LongSupplier physicalMillis;
+
+    public HybridClock() {
+        this(System::currentTimeMillis);
+    }
+
+    HybridClock(LongSupplier physicalMillis) {
+        this.physicalMillis = physicalMillis;
+    }
+
+    /**
+     * Stamp a local or send event.
+     */
+    public long now() {
+        return last.accumulateAndGet(physical(), (l, pt) -> Math.max(l + 1, pt));
+    }
+
+    /**
+     * Merge a stamp received from a peer (0 = none) and stamp the receive event.
+     */
+    public long update(long remote) {
+        if (remote <= 0)
+            return now();
+        return last.accumulateAndGet(remote, (l, m) -> Math.max(Math.max(l, m) + 1, physical()));
+    }
+
+    public long current() {
+        return last.get();
+    }
+
+    // Wall clock in stamp units (logical counter 0). A full counter simply
+    // carries into the next millisecond.
+    private long physical() {
+        return physicalMillis.getAsLong() << LOGICAL_BITS;
+    }
+
+    public static long physicalMillis(long hlc) {
+        return hlc >>> LOGICAL_BITS;
+    }
+
+    public static int logical(long hlc) {
+        return (int) (hlc & LOGICAL_MASK);
+    }
+
+    /**
+     * Cluster order of two stamped events: by hlc, then node id.
+     */
+    public static int compare(long hlcA, int nodeA, long hlcB, int nodeB) {
+        int c = Long.compare(hlcA, hlcB);
+        return (c != 0) ? c : Integer.compare(nodeA, nodeB);
+    }
+
+    public static String format(long hlc) {
+        return physicalMillis(hlc) + "." + logical(hlc);
+    }
+}
@@ -0,0 +1,58 @@
+package algorithm;
+
+import java.util.Properties;
+
+/**
+ * NodeConfig
+ *
+ * Tunable settings for a node.
+ * - Values come from config/nodes.properties (non-numeric keys, loaded by ATMApp).
+ * - A JVM system property with the same name (-Dkey=value) overrides the file.
+ * - Every setting has a default, so nothing here is required.
+ */
+public final class NodeConfig {
+
+    private static final Properties settings = new Properties();
+
+    private NodeConfig() {
+    }
+
+    /**
+     * Load settings from the node configuration file.
+     * Numeric keys are node addresses and are ignored here.
+     */
+    public static synchronized void load(Properties props) {
+        for (String key : props.stringPropertyNames()) {
+            if (!key.isEmpty() && !Character.isDigit(key.charAt(0))) {
+                settings.setProperty(key, props.getProperty(key).trim());
+            }
+        }
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null)
+            value = settings.getProperty(key);
+        return (value != null && !value.isEmpty()) ? value : defaultValue;
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,95 @@
+package algorithm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NodeExecutors
+ *
+ * Central place that decides how node, web and sync work is executed.
+ * - exec.mode=platform (default): bounded pools of platform threads.
+ * - exec.mode=virtual: one virtual thread per task, so thousands of sessions
+ * can block on requestAccess or MySQL without holding a platform thread.
+ * Needs Java 21+; on older runtimes it falls back to platform threads.
+ */
+public final class NodeExecutors {
+
+    private static final ThreadFactory VIRTUAL_PROBE = virtualThreadFactory("probe");
+    private static final boolean VIRTUAL = resolveVirtual();
+
+    private NodeExecutors() {
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Thread factory for long-lived workers (handler pools, etc.).
+     * Platform threads are created as daemons.
+     */
+    public static ThreadFactory threadFactory(String name) {
+        if (VIRTUAL) {
+            ThreadFactory f = virtualThreadFactory(name);
+            if (f != null)
+                return f;
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Executor for blocking tasks (HTTP handlers, sync, JDBC).
+     * Virtual mode: a new virtual thread per task. Platform mode: a fixed pool.
+     */
+    public static ExecutorService newTaskExecutor(String name, int platformThreads) {
+        if (VIRTUAL) {
+            try {
+                Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) perTask.invoke(null, threadFactory(name));
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(threadFactory(name));
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads, threadFactory(name));
+    }
+
+    /**
+     * Handler pool size: virtual threads are cheap, so allow far more in flight.
+     */
+    public static int handlerThreads(int platformThreads) {
+        return VIRTUAL ? Math.max(platformThreads, 1024) : platformThreads;
+    }
+
+    private static boolean resolveVirtual() {
+        String mode = NodeConfig.getString("exec.mode", "platform");
+        if (!"virtual".equalsIgnoreCase(mode))
+            return false;
+        if (VIRTUAL_PROBE == null) {
+            System.err.println("exec.mode=virtual needs Java 21+; using platform threads.");
+            return false;
+        }
+        return true;
+    }
+
+    // Thread.ofVirtual().name(prefix, 0).factory() via reflection, so this
+    // still compiles and runs on Java 17.
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            Method named = ofVirtual.getMethod("name", String.class, long.class);
+            builder = named.invoke(builder, name + "-", 0L);
+            return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package algorithm;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * PeerConnectionPool
+ *
+ * Keeps one long-lived outbound connection per peer node.
+ * - Protocol messages (REQUEST, REPLY, REPLICATE_*) reuse a warm TCP channel
+ * instead of paying a handshake per message.
+ * - Connections are opened lazily on first use.
+ * - A failed write closes the channel and retries once on a fresh connection.
+ * - Messages are written with WireCodec (binary frames, or legacy text lines
+ * while wire.format=text during a mixed-version rollout).
+ * - Outbound batching: messages queued for the same peer within a short
+ * window (batch.windowMicros) are written together as one BATCH frame.
+ * Per-peer order is preserved within a lane.
+ * - Two lanes per peer: lock control (REQUEST, REPLY, HEARTBEAT) has its own
+ * connection and writer threads, so it never queues behind replication.
+ * - Connect outcomes go to the failure detector (refused vs timed out).
+ * - Traffic is one-way: answers (REPLY, REPLICATE_ACK, HEARTBEAT_ACK, ...)
+ * arrive as new messages on the peer's own pool connection to our listener.
+ * Anything a peer does write back here (a BUSY shed reply, a reply from an
+ * older node) is read and passed to the inbound handler, not dropped.
+ */
+public class PeerConnectionPool {
+
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final int MAX_BATCH_MESSAGES = 256;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final int ownerId;
+    private final Map<Integer, InetSocketAddress> addresses; // <ID, IP:Port>
+    private final boolean binaryWire;
+    private final long batchWindowMicros;
+    private final FailureDetector failureDetector;
+    private final ConcurrentHashMap<Integer, PeerChannel> channels = new ConcurrentHashMap<>(); // Bulk lane
+    private final ConcurrentHashMap<Integer, PeerChannel> controlChannels = new ConcurrentHashMap<>();
+    private final ExecutorService writers; // Flushes per-peer queues (blocking socket I/O)
+    private final ExecutorService controlWriters;
+    private final ScheduledExecutorService batchTimer;
+    private final ExecutorService readers; // One blocking reader per open connection
+    private volatile PeerListener.Handler inbound; // Set by the node once it is started
+
+    public PeerConnectionPool(int ownerId, Map<Integer, InetSocketAddress> addresses,
+            FailureDetector failureDetector) {
+        this.ownerId = ownerId;
+        this.addresses = addresses;
+        this.failureDetector = failureDetector;
+        this.binaryWire = !"text".equalsIgnoreCase(NodeConfig.getString("wire.format", "binary"));
+        this.batchWindowMicros = NodeConfig.getLong("batch.windowMicros", 200);
+        this.writers = Executors.newFixedThreadPool(Math.max(2, addresses.size()), r -> {
+            Thread t = new Thread(r, "Node-" + ownerId + "-Sender");
+            t.setDaemon(true);
+            return t;
+        });
+        this.controlWriters = Executors.newFixedThreadPool(Math.max(2, addresses.size()), r -> {
+            Thread t = new Thread(r, "Node-" + ownerId + "-ControlSender");
+            t.setDaemon(true);
+            return t;
+        });
+        this.batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Node-" + ownerId + "-BatchTimer");
+            t.setDaemon(true);
+            return t;
+        });
+        // Two lanes per peer, each with at most one live connection
+        this.readers = NodeExecutors.newTaskExecutor("Node-" + ownerId + "-PeerReader",
+                Math.max(2, 2 * addresses.size()));
+    }
+
+    /**
+     * Handler for messages a peer writes back on a pooled connection.
+     * Its replies are sent to that peer through the pool.
+     */
+    public void setInboundHandler(PeerListener.Handler handler) {
+        this.inbound = handler;
+    }
+
+    public boolean isBinaryWire() {
+        return binaryWire;
+    }
+
+    /**
+     * Queue a message for a peer. It is coalesced with anything else headed
+     * to the same peer in the current batch window.
+     *
+     * @return future completed with true once the message was written to the socket
+     */
+    public CompletableFuture<Boolean> sendAsync(int peerId, PeerMessage message) {
+        InetSocketAddress address = addresses.get(peerId);
+        if (address == null || address.isUnresolved())
+            return CompletableFuture.completedFuture(false);
+
+        PeerChannel channel = AdmissionControl.isControl(message)
+                ? controlChannels.computeIfAbsent(peerId, id -> new PeerChannel(id, address, true))
+                : channels.computeIfAbsent(peerId, id -> new PeerChannel(id, address, false));
+        return channel.enqueue(WireCodec.encodeFor(message, binaryWire));
+    }
+
+    /**
+     * A single reusable connection to one peer.
+     * Writes are serialized so frames from different threads never interleave.
+     */
+    private final class PeerChannel {
+        private final int peerId;
+        private final InetSocketAddress address;
+        private final boolean control;
+        private final ExecutorService laneWriters;
+        private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private Socket socket;
+        private OutputStream out;
+
+        PeerChannel(int peerId, InetSocketAddress address, boolean control) {
+            this.peerId = peerId;
+            this.address = address;
+            this.control = control;
+            this.laneWriters = control ? controlWriters : writers;
+        }
+
+        CompletableFuture<Boolean> enqueue(byte[] frame) {
+            Pending p = new Pending(frame);
+            queue.add(p);
+            scheduleFlush();
+            return p.done;
+        }
+
+        private void scheduleFlush() {
+            if (!queue.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+                if (batchWindowMicros > 0) {
+                    // Hold the first message briefly so others can join the batch
+                    batchTimer.schedule(() -> laneWriters.execute(this::flush), batchWindowMicros,
+                            TimeUnit.MICROSECONDS);
+                } else {
+                    laneWriters.execute(this::flush);
+                }
+            }
+        }
+
+        /**
+         * Runs on a writer thread: drain the queue in batches.
+         */
+        private void flush() {
+            List<Pending> batch = new ArrayList<>();
+            Pending p;
+            while (!queue.isEmpty()) {
+                batch.clear();
+                int bytes = 0;
+                while (batch.size() < MAX_BATCH_MESSAGES && bytes < MAX_BATCH_BYTES && (p = queue.poll()) != null) {
+                    batch.add(p);
+                    bytes += p.frame.length;
+                }
+
+                boolean ok = write(encodeBatch(batch, bytes));
+                for (Pending sent : batch) {
+                    sent.done.complete(ok);
+                }
+            }
+            flushScheduled.set(false);
+            scheduleFlush(); // anything queued after the last poll
+        }
+
+        private byte[] encodeBatch(List<Pending> batch, int bytes) {
+            if (batch.size() == 1)
+                return batch.get(0).frame;
+            if (binaryWire) {
+                List<byte[]> frames = new ArrayList<>(batch.size());
+                for (Pending p : batch)
+                    frames.add(p.frame);
+                return WireCodec.encodeBatch(frames);
+            }
+            // Legacy text: no batch frame, but still one write for all lines
+            byte[] joined = new byte[bytes];
+            int pos = 0;
+            for (Pending p : batch) {
+                System.arraycopy(p.frame, 0, joined, pos, p.frame.length);
+                pos += p.frame.length;
+            }
+            return joined;
+        }
+
+        private synchronized boolean write(byte[] frame) {
+            // 1. Try the warm connection first
+            if (out != null) {
+                try {
+                    out.write(frame);
+                    out.flush();
+                    return true;
+                } catch (IOException e) {
+                    closeQuietly();
+                }
+            }
+
+            // 2. Reconnect once and retry
+            try {
+                connect();
+                out.write(frame);
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                closeQuietly();
+                return false;
+            }
+        }
+
+        private void connect() throws IOException {
+            Socket s = new Socket();
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            try {
+                s.connect(new InetSocketAddress(address.getAddress(), address.getPort()), CONNECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                failureDetector.connectResult(peerId, false, e instanceof ConnectException);
+                s.close();
+                throw e;
+            }
+            failureDetector.connectResult(peerId, true, false);
+            socket = s;
+            out = new BufferedOutputStream(s.getOutputStream());
+
+            // Read what the peer writes back, and notice when it closes the
+            // connection so we don't write into a dead socket
+            readers.execute(() -> readReplies(s));
+        }
+
+        private void readReplies(Socket s) {
+            try {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                PeerMessage message;
+                while ((message = WireCodec.read(in)) != null) {
+                    PeerListener.Handler handler = inbound;
+                    if (handler == null) {
+                        System.err.println("Node " + ownerId + " dropped " + message + " from Node " + peerId
+                                + " (no inbound handler)");
+                        continue;
+                    }
+                    try {
+                        handler.handle(message, reply -> sendAsync(peerId, reply));
+                    } catch (RuntimeException e) {
+                        System.err.println("Node " + ownerId + " handler error on Node " + peerId
+                                + (control ? " control" : "") + " channel: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                // connection reset, closed locally, or a malformed frame
+            }
+            synchronized (this) {
+                if (socket == s)
+                    closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            socket = null;
+            out = null;
+        }
+    }
+
+    private static final class Pending {
+        final byte[] frame;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        Pending(byte[] frame) {
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package algorithm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * PeerListener
+ *
+ * Non-blocking inbound transport for peer messages.
+ * - One selector thread accepts connections and reads frames.
+ * - Each frame is either a binary WireCodec frame or a legacy text line.
+ * Both are capped at WireCodec.MAX_FRAME_SIZE; a connection that sends more
+ * without completing one is closed.
+ * - Complete messages are handed to a bounded handler pool (flat thread count).
+ * - Messages from the same connection are handled in order, one at a time.
+ * - Each connection queues at most listener.maxQueued messages. Past that,
+ * reads on that connection pause until the handler catches up, so a flooding
+ * peer is slowed by TCP flow control without stalling other connections.
+ * - If the shared handler queue is full, the connection that could not be
+ * scheduled pauses its reads and is rescheduled once the queue has room.
+ * The selector thread never blocks on the handler pool.
+ * - Replies are sent back on the same connection, in the same wire format
+ * as the message they answer (used by QUERY_ACCOUNT, SYNC_REQUEST, ...).
+ * - Optional priority lane: messages matching the priority predicate
+ * (lock control) skip the connection's inbox and run on their own small pool,
+ * so they never wait behind replication or a sync dump.
+ */
+public class PeerListener {
+
+    /**
+     * Callback for one inbound message.
+     */
+    public interface Handler {
+        void handle(PeerMessage message, Reply reply);
+    }
+
+    /**
+     * Sends a response back to whoever sent the message being handled.
+     */
+    public interface Reply {
+        void send(PeerMessage message);
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = WireCodec.MAX_FRAME_SIZE; // Legacy text line without its '\n'
+    private static final int HANDLER_QUEUE_CAPACITY = 1024;
+
+    private final int port;
+    private final String name;
+    private final Handler handler;
+    private final ThreadPoolExecutor handlerPool;
+    private final Predicate<PeerMessage> priority; // null = single lane
+    private final ExecutorService priorityPool;
+    private final int maxQueued; // Per-connection inbox bound
+    private final AtomicLong pausedReads = new AtomicLong(); // Times a connection hit maxQueued
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> waitingForHandler = new ConcurrentLinkedQueue<>(); // Handler queue was full
+    private Selector selector;
+    private volatile boolean running;
+
+    public PeerListener(int port, String name, Handler handler, int handlerThreads) {
+        this(port, name, handler, handlerThreads, null);
+    }
+
+    /**
+     * @param priority - messages to handle on the priority lane (null = none)
+     */
+    public PeerListener(int port, String name, Handler handler, int handlerThreads,
+            Predicate<PeerMessage> priority) {
+        this.port = port;
+        this.name = name;
+        this.handler = handler;
+        this.priority = priority;
+        this.priorityPool = (priority != null) ? NodeExecutors.newTaskExecutor(name + "-Control", 2) : null;
+        this.maxQueued = Math.max(2, NodeConfig.getInt("listener.maxQueued", 1024));
+
+        // Platform daemons or virtual threads, depending on exec.mode
+        this.handlerPool = new ThreadPoolExecutor(handlerThreads, handlerThreads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(HANDLER_QUEUE_CAPACITY),
+                NodeExecutors.threadFactory(name + "-Handler"),
+                new ThreadPoolExecutor.AbortPolicy()); // Full queue: Connection.scheduleDrain parks the connection
+    }
+
+    /**
+     * Bind the port and start the selector thread.
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        Thread loop = new Thread(() -> runLoop(server), name + "-Listener");
+        loop.start();
+    }
+
+    /**
+     * How many times a connection's inbox filled up and its reads were paused.
+     */
+    public long getPausedReads() {
+        return pausedReads.get();
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null)
+            selector.wakeup();
+        handlerPool.shutdown();
+        if (priorityPool != null)
+            priorityPool.shutdown();
+    }
+
+    // =================================================================
+    // SELECTOR LOOP (single thread owns every channel operation)
+    // =================================================================
+
+    private void runLoop(ServerSocketChannel server) {
+        try {
+            while (running) {
+                selector.select();
+                flushPendingWrites();
+                resumeWaiting();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(server);
+                        } else {
+                            Connection conn = (Connection) key.attachment();
+                            if (key.isReadable())
+                                conn.read();
+                            if (key.isValid() && key.isWritable())
+                                conn.write();
+                        }
+                    } catch (IOException e) {
+                        Object att = key.attachment();
+                        if (att instanceof Connection)
+                            ((Connection) att).close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Listener closed on exit
+        } finally {
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null)
+            return;
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Connection conn = new Connection(ch);
+        conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    private void flushPendingWrites() {
+        Connection conn;
+        while ((conn = pendingWrites.poll()) != null) {
+            if (!conn.key.isValid())
+                continue;
+            try {
+                conn.write();
+            } catch (IOException e) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Reschedule connections parked on a full handler queue, while it has room.
+     */
+    private void resumeWaiting() {
+        Connection conn;
+        while (handlerPool.getQueue().remainingCapacity() > 0 && (conn = waitingForHandler.poll()) != null)
+            conn.resume();
+    }
+
+    // =================================================================
+    // PER-CONNECTION STATE
+    // =================================================================
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<Inbound> inbox = new ConcurrentLinkedQueue<>();
+        private final Queue<Inbound> priorityInbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean priorityScheduled = new AtomicBoolean(false);
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicInteger queued = new AtomicInteger(); // inbox size
+        private final AtomicBoolean paused = new AtomicBoolean(false); // OP_READ off: inbox full
+        private boolean waiting; // OP_READ off: handler queue full (selector thread only)
+        private volatile boolean inputClosed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int n = 0;
+            while (!paused.get() && !waiting && (n = channel.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                parseFrames();
+                readBuffer.compact();
+                if (!readBuffer.hasRemaining())
+                    grow();
+                if (queued.get() >= maxQueued)
+                    pauseReads();
+            }
+            scheduleDrain();
+
+            if (n < 0) {
+                // Peer finished sending; keep the channel until replies are flushed
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+            }
+        }
+
+        /**
+         * Inbox is full: stop reading until the handler drains it to half.
+         */
+        private void pauseReads() {
+            paused.set(true);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            pausedReads.incrementAndGet();
+            // The handler may have drained everything before we paused
+            if (queued.get() <= maxQueued / 2 && paused.compareAndSet(true, false) && !waiting)
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        /**
+         * Handler queue is full: stop reading and wait for resumeWaiting().
+         */
+        private void waitForHandler() {
+            if (!waiting) {
+                waiting = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                pausedReads.incrementAndGet();
+                waitingForHandler.add(this);
+            }
+            // A queued task will wake the selector when it finishes; if none is left, retry now
+            if (handlerPool.getQueue().remainingCapacity() > 0)
+                resumeWaiting();
+        }
+
+        /**
+         * Selector thread: the handler queue has room again.
+         */
+        void resume() {
+            waiting = false;
+            if (!key.isValid())
+                return;
+            scheduleDrain();
+            if (!waiting && !paused.get() && !inputClosed)
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private void enqueue(Inbound in) {
+            if (priority != null && priority.test(in.message)) {
+                // Control lane: never counted against maxQueued, never paused behind bulk
+                priorityInbox.add(in);
+                return;
+            }
+            queued.incrementAndGet();
+            inbox.add(in);
+        }
+
+        /**
+         * Pull every complete frame out of the read buffer (flipped for reading).
+         */
+        private void parseFrames() throws IOException {
+            while (readBuffer.hasRemaining()) {
+                int start = readBuffer.position();
+                if (readBuffer.get(start) == WireCodec.MAGIC) {
+                    int length = WireCodec.frameLength(readBuffer);
+                    if (length > WireCodec.MAX_FRAME_SIZE || length < -1)
+                        throw new IOException("Frame too large: " + length);
+                    if (length == -1 || readBuffer.remaining() < length) {
+                        ensureCapacity(length);
+                        return;
+                    }
+                    WireCodec.decodeFrames(readBuffer, msg -> enqueue(new Inbound(msg, true)));
+                } else {
+                    int end = -1;
+                    for (int i = start; i < readBuffer.limit(); i++) {
+                        if (readBuffer.get(i) == '\n') {
+                            end = i;
+                            break;
+                        }
+                    }
+                    if (end == -1)
+                        return;
+                    int len = end - start;
+                    if (len > 0 && readBuffer.get(end - 1) == '\r')
+                        len--;
+                    String line = new String(readBuffer.array(), readBuffer.arrayOffset() + start, len,
+                            StandardCharsets.UTF_8);
+                    readBuffer.position(end + 1);
+                    enqueue(new Inbound(PeerMessage.text(line), false));
+                }
+            }
+        }
+
+        private void ensureCapacity(int frameLength) {
+            if (frameLength > readBuffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(frameLength);
+                bigger.put(readBuffer);
+                bigger.flip();
+                readBuffer = bigger;
+            }
+        }
+
+        // Buffer full of one unfinished line (frames are sized by ensureCapacity)
+        private void grow() throws IOException {
+            if (readBuffer.capacity() >= MAX_LINE_LENGTH)
+                throw new IOException("Line too long: no newline in " + readBuffer.capacity() + " bytes");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_LINE_LENGTH));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        void write() throws IOException {
+            ByteBuffer buf;
+            while ((buf = outbox.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining())
+                    break;
+                outbox.poll();
+            }
+            int ops = (inputClosed || paused.get() || waiting) ? 0 : SelectionKey.OP_READ;
+            if (!outbox.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+            closeIfDone();
+        }
+
+        private void scheduleDrain() {
+            if (!priorityInbox.isEmpty() && priorityScheduled.compareAndSet(false, true)) {
+                priorityPool.execute(() -> drain(priorityInbox, priorityScheduled, false));
+            }
+            if (!inbox.isEmpty() && !waiting && scheduled.compareAndSet(false, true)) {
+                try {
+                    handlerPool.execute(() -> drain(inbox, scheduled, true));
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    if (running)
+                        waitForHandler();
+                }
+            }
+        }
+
+        /**
+         * Runs on a handler thread. Handles one lane's messages in arrival order.
+         */
+        private void drain(Queue<Inbound> lane, AtomicBoolean laneScheduled, boolean counted) {
+            do {
+                Inbound in;
+                while ((in = lane.poll()) != null) {
+                    if (counted && queued.decrementAndGet() <= maxQueued / 2 && paused.compareAndSet(true, false)) {
+                        // Drained to half: have the selector turn reads back on (in write())
+                        pendingWrites.add(this);
+                        selector.wakeup();
+                    }
+                    final boolean binary = in.binary;
+                    try {
+                        handler.handle(in.message,
+                                reply -> outbox.add(ByteBuffer.wrap(WireCodec.encodeFor(reply, binary))));
+                    } catch (RuntimeException e) {
+                        System.err.println(name + " handler error: " + e.getMessage());
+                    }
+                }
+                laneScheduled.set(false);
+            } while (!lane.isEmpty() && laneScheduled.compareAndSet(false, true));
+
+            if (!outbox.isEmpty() || inputClosed) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            } else if (!waitingForHandler.isEmpty()) {
+                selector.wakeup(); // A handler slot freed up
+            }
+        }
+
+        private void closeIfDone() {
+            if (inputClosed && !scheduled.get() && !priorityScheduled.get() && inbox.isEmpty()
+                    && priorityInbox.isEmpty() && outbox.isEmpty())
+                close();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static final class Inbound {
+        final PeerMessage message;
+        final boolean binary; // reply in the same format the sender used
+
+        Inbound(PeerMessage message, boolean binary) {
+            this.message = message;
+            this.binary = binary;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package algorithm;
+
+/**
+ * PeerMessage
+ *
+ * One decoded peer protocol message.
+ * - type: one of the message type constants below (sent as a single byte)
+ * - timestamp: Lamport timestamp (0 for messages that don't carry one)
+ * - senderId: node id of the sender
+ * - args: message specific string fields (never split on delimiters)
+ */
+public final class PeerMessage {
+
+    // Message types. These are the wire byte values - never renumber.
+    public static final byte TEXT = 0; // Raw text line (legacy or free-form reply)
+    public static final byte REQUEST = 1;
+    public static final byte REPLY = 2;
+    public static final byte REPLICATE_CREATE = 3;
+    public static final byte REPLICATE_UPDATE = 4;
+    public static final byte REPLICATE_PASSWORD_UPDATE = 5;
+    public static final byte REPLICATE_LOG = 6;
+    public static final byte QUERY_ACCOUNT = 7;
+    public static final byte ACCOUNT_RESPONSE = 8;
+    public static final byte QUERY_SESSION = 9;
+    public static final byte SYNC_REQUEST = 10;
+    public static final byte SYNC_RESPONSE = 11;
+    public static final byte QUERY_TRANSACTION_LOGS = 12;
+    public static final byte HEARTBEAT = 13;
+    public static final byte BATCH = 14; // Frame of frames, unpacked by WireCodec
+    public static final byte BUSY = 15; // Request shed by admission control; retry later
+    // Quorum (Maekawa) mutual exclusion, mutex.strategy=maekawa
+    public static final byte QUORUM_REQUEST = 16;
+    public static final byte GRANT = 17;
+    public static final byte RELEASE = 18;
+    public static final byte INQUIRE = 19;
+    public static final byte YIELD = 20;
+    public static final byte FAILED = 21;
+    public static final byte HEARTBEAT_ACK = 22; // Echoes a HEARTBEAT's send time (RTT sample)
+    // One banking operation (op id = origin node + hlc), applied once per account
+    public static final byte REPLICATE_OP = 23;
+    // Ordered replication stream (ReplicationStreams): envelope and cumulative ack
+    public static final byte REPLICATE_STREAM = 24;
+    public static final byte REPLICATE_ACK = 25;
+
+    private static final String[] NAMES = {
+            "TEXT", "REQUEST", "REPLY", "REPLICATE_CREATE", "REPLICATE_UPDATE",
+            "REPLICATE_PASSWORD_UPDATE", "REPLICATE_LOG", "QUERY_ACCOUNT", "ACCOUNT_RESPONSE",
+            "QUERY_SESSION", "SYNC_REQUEST", "SYNC_RESPONSE", "QUERY_TRANSACTION_LOGS", "HEARTBEAT",
+            "BATCH", "BUSY", "QUORUM_REQUEST", "GRANT", "RELEASE", "INQUIRE", "YIELD", "FAILED",
+            "HEARTBEAT_ACK", "REPLICATE_OP", "REPLICATE_STREAM", "REPLICATE_ACK"
+    };
+
+    private static final String[] NO_ARGS = new String[0];
+
+    public final byte type;
+    public final int timestamp;
+    public final int senderId;
+    private final String[] args;
+
+    public PeerMessage(byte type, int timestamp, int senderId, String... args) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.senderId = senderId;
+        this.args = (args != null) ? args : NO_ARGS;
+    }
+
+    /**
+     * Wrap a raw text line (BankServer commands, legacy peers, simple replies).
+     */
+    public static PeerMessage text(String line) {
+        return new PeerMessage(TEXT, 0, 0, line);
+    }
+
+    public String arg(int index) {
+        return args[index];
+    }
+
+    public String arg(int index, String defaultValue) {
+        return (index < args.length && args[index] != null) ? args[index] : defaultValue;
+    }
+
+    public int argCount() {
+        return args.length;
+    }
+
+    String[] rawArgs() {
+        return args;
+    }
+
+    /**
+     * True for the quorum mutex messages (QUORUM_REQUEST .. FAILED).
+     */
+    public static boolean isQuorum(byte type) {
+        return type >= QUORUM_REQUEST && type <= FAILED;
+    }
+
+    public static String typeName(byte type) {
+        return (type >= 0 && type < NAMES.length) ? NAMES[type] : "TYPE_" + type;
+    }
+
+    @Override
+    public String toString() {
+        return typeName(type) + "(ts=" + timestamp + ", from=" + senderId + ", args=" + args.length + ")";
+    }
+}
@@ -0,0 +1,455 @@
+package algorithm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+
+/**
+ * QuorumMutex
+ *
+ * Maekawa-style mutual exclusion (mutex.strategy=maekawa).
+ * - Each node asks only its quorum (its row and column in a sqrt(N) x sqrt(N)
+ * grid of node ids) instead of every peer. Any two quorums intersect, so two
+ * nodes can never collect all their votes for the same resource at once.
+ * - Every node is a voter: it grants one vote per resource at a time and
+ * queues the rest by (timestamp, node id).
+ * - INQUIRE / YIELD / FAILED break the wait-for cycles plain Maekawa can form
+ * (Sanders' variant).
+ * - Votes are kept per resource, so different accounts never contend.
+ * - A member that is down or unreachable never counts as a vote: unlike a
+ * Ricart-Agrawala peer, it is the arbiter for other nodes' quorums, so
+ * assuming its vote would let two nodes hold the same resource. The attempt
+ * times out instead.
+ */
+public class QuorumMutex {
+
+    private static final long POLL_MS = 100; // Re-check the failure detector while waiting
+
+    private final int nodeId;
+    private final Set<Integer> quorum;
+    private final IntSupplier clock; // Lamport tick for outgoing messages
+    private final BiFunction<Integer, PeerMessage, CompletableFuture<Boolean>> sender;
+    private final IntPredicate available; // Failure detector view
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Vote> votes = new HashMap<>(); // As a voter
+    private final Map<String, Attempt> attempts = new HashMap<>(); // As a requester
+    private final List<Outgoing> outbox = new ArrayList<>(); // Sent after the lock is released
+
+    public QuorumMutex(int nodeId, Collection<Integer> nodeIds, IntSupplier clock,
+            BiFunction<Integer, PeerMessage, CompletableFuture<Boolean>> sender, IntPredicate available) {
+        this.nodeId = nodeId;
+        this.quorum = gridQuorum(nodeId, nodeIds);
+        this.clock = clock;
+        this.sender = sender;
+        this.available = available;
+        System.out.println("Node " + nodeId + " MAEKAWA quorum: " + quorum);
+    }
+
+    /**
+     * Row and column of the node in a k x k grid (k = ceil(sqrt(N))) of the
+     * sorted ids. The last row may be partial; quorums still pairwise intersect.
+     */
+    static Set<Integer> gridQuorum(int self, Collection<Integer> nodeIds) {
+        List<Integer> ids = new ArrayList<>(new TreeSet<>(nodeIds));
+        int k = (int) Math.ceil(Math.sqrt(ids.size()));
+        int index = ids.indexOf(self);
+        int row = index / k;
+        int col = index % k;
+
+        Set<Integer> members = new TreeSet<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i / k == row || i % k == col)
+                members.add(ids.get(i));
+        }
+        return members;
+    }
+
+    public Set<Integer> getQuorum() {
+        return quorum;
+    }
+
+    // =================================================================
+    // REQUESTER SIDE
+    // =================================================================
+
+    /**
+     * Collect a vote for the resource from every quorum member. If a member is
+     * believed DEAD or can't be reached, or the quorum is still incomplete
+     * after timeoutMs, the attempt fails instead of entering without permission.
+     *
+     * @return the request timestamp, or -1 on timeout (the caller must still
+     *         {@link #release(String)} the resource to withdraw the request)
+     */
+    public int acquire(String resource, long timeoutMs) {
+        Attempt attempt;
+        lock.lock();
+        try {
+            attempt = new Attempt(resource, clock.getAsInt());
+            attempts.put(resource, attempt);
+            for (int member : quorum) {
+                if (member != nodeId && !available.test(member)) {
+                    System.err.println("!!! QUORUM MEMBER " + member + " DOWN, NOT REQUESTING [" + resource + "] !!!");
+                    return -1;
+                }
+            }
+            for (int member : quorum) {
+                send(member, new PeerMessage(PeerMessage.QUORUM_REQUEST, attempt.timestamp, nodeId, resource));
+            }
+        } finally {
+            lock.unlock();
+        }
+        flush();
+
+        System.out.println("\nNode " + nodeId + " SENDING QUORUM REQUEST for [" + resource + "] to " + quorum
+                + ", Time: " + attempt.timestamp);
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        lock.lock();
+        try {
+            while (!attempt.granted.containsAll(quorum)) {
+                // A member that died or can't be reached after our REQUEST will never vote
+                Integer lost = attempt.unreachable;
+                for (int member : quorum) {
+                    if (lost == null && member != nodeId && !attempt.granted.contains(member)
+                            && !available.test(member))
+                        lost = member;
+                }
+                if (lost != null) {
+                    System.err.println("!!! QUORUM MEMBER " + lost + " LOST WHILE WAITING FOR [" + resource
+                            + "], giving up !!!");
+                    return -1;
+                }
+
+                long timeLeft = deadline - System.currentTimeMillis();
+                if (timeLeft <= 0) {
+                    System.err.println("!!! TIMEOUT WAITING FOR QUORUM [" + resource + "] (" + attempt.granted.size()
+                            + "/" + quorum.size() + "), giving up !!!");
+                    return -1;
+                }
+                try {
+                    attempt.changed.await(Math.min(timeLeft, POLL_MS), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            attempt.inCriticalSection = true;
+        } finally {
+            lock.unlock();
+        }
+        return attempt.timestamp;
+    }
+
+    /**
+     * Leave the critical section: every quorum member frees its vote.
+     */
+    public void release(String resource) {
+        lock.lock();
+        try {
+            Attempt attempt = attempts.remove(resource);
+            if (attempt == null)
+                return;
+            for (int member : quorum) {
+                send(member, new PeerMessage(PeerMessage.RELEASE, clock.getAsInt(), nodeId,
+                        resource, String.valueOf(attempt.timestamp)));
+            }
+        } finally {
+            lock.unlock();
+        }
+        flush();
+    }
+
+    // =================================================================
+    // MESSAGE HANDLING (voter and requester)
+    // =================================================================
+
+    public void onMessage(PeerMessage message) {
+        String resource = message.arg(0);
+        int requestTs = Integer.parseInt(message.arg(1, String.valueOf(message.timestamp)));
+        int from = message.senderId;
+
+        lock.lock();
+        try {
+            switch (message.type) {
+                case PeerMessage.QUORUM_REQUEST:
+                    onRequest(resource, new Ticket(message.timestamp, from));
+                    break;
+                case PeerMessage.GRANT:
+                    onGrant(resource, requestTs, from);
+                    break;
+                case PeerMessage.FAILED:
+                    onFailed(resource, requestTs);
+                    break;
+                case PeerMessage.INQUIRE:
+                    onInquire(resource, requestTs, from);
+                    break;
+                case PeerMessage.YIELD:
+                    onYield(resource, new Ticket(requestTs, from));
+                    break;
+                case PeerMessage.RELEASE:
+                    onRelease(resource, new Ticket(requestTs, from));
+                    break;
+                default:
+                    break;
+            }
+        } finally {
+            lock.unlock();
+        }
+        flush();
+    }
+
+    // Voter: one vote per resource, the rest wait in priority order
+    private void onRequest(String resource, Ticket request) {
+        Vote vote = votes.computeIfAbsent(resource, r -> new Vote());
+
+        // The holder asks again with a newer request: it has left (or, after a
+        // restart, forgotten) the one we voted for, so that vote is free. A
+        // holder that is merely suspected or down keeps it: it may be in the CS.
+        if (vote.votedFor != null && vote.votedFor.node == request.node
+                && vote.votedFor.timestamp < request.timestamp) {
+            System.out.println("Node " + nodeId + " RECLAIMING vote on [" + resource + "] from Node "
+                    + request.node + "'s earlier request");
+            vote.votedFor = null;
+            vote.inquired = false;
+        }
+
+        if (vote.votedFor == null) {
+            grant(resource, vote, request);
+            return;
+        }
+
+        Ticket best = vote.waiting.peek();
+        vote.waiting.add(request);
+        if (vote.votedFor.compareTo(request) < 0 || (best != null && best.compareTo(request) < 0)) {
+            // Someone with higher priority already has or wants the vote
+            fail(resource, vote, request);
+        } else if (!vote.inquired) {
+            // The new request beats the current holder: ask the holder to yield
+            vote.inquired = true;
+            send(vote.votedFor.node, new PeerMessage(PeerMessage.INQUIRE, clock.getAsInt(), nodeId,
+                    resource, String.valueOf(vote.votedFor.timestamp)));
+        }
+    }
+
+    private void onYield(String resource, Ticket holder) {
+        Vote vote = votes.get(resource);
+        if (vote == null || !holder.equals(vote.votedFor))
+            return;
+        vote.waiting.add(vote.votedFor);
+        vote.votedFor = null;
+        vote.inquired = false;
+        grant(resource, vote, vote.waiting.poll());
+    }
+
+    private void onRelease(String resource, Ticket holder) {
+        Vote vote = votes.get(resource);
+        if (vote == null)
+            return;
+        if (holder.equals(vote.votedFor)) {
+            vote.votedFor = null;
+            vote.inquired = false;
+            Ticket next = vote.waiting.poll();
+            if (next != null)
+                grant(resource, vote, next);
+        } else {
+            // Withdrawn (timed out) without our vote: drop it from the queue
+            vote.waiting.remove(holder);
+            vote.failed.remove(holder);
+        }
+    }
+
+    private void grant(String resource, Vote vote, Ticket request) {
+        vote.votedFor = request;
+        vote.failed.remove(request);
+        send(request.node, new PeerMessage(PeerMessage.GRANT, clock.getAsInt(), nodeId,
+                resource, String.valueOf(request.timestamp)));
+
+        // Everyone still waiting now ranks below the holder. They must know, or
+        // they could sit on votes from other members and never yield them.
+        for (Ticket waiting : vote.waiting) {
+            fail(resource, vote, waiting);
+        }
+    }
+
+    private void fail(String resource, Vote vote, Ticket request) {
+        if (vote.failed.add(request)) {
+            send(request.node, new PeerMessage(PeerMessage.FAILED, clock.getAsInt(), nodeId,
+                    resource, String.valueOf(request.timestamp)));
+        }
+    }
+
+    // Requester: collect grants, give them back when asked and we can't win yet
+    private void onGrant(String resource, int requestTs, int from) {
+        Attempt attempt = current(resource, requestTs);
+        if (attempt == null)
+            return;
+        attempt.granted.add(from);
+        attempt.changed.signalAll();
+    }
+
+    private void onFailed(String resource, int requestTs) {
+        Attempt attempt = current(resource, requestTs);
+        if (attempt == null)
+            return;
+        attempt.failed = true;
+        // We can't win right now: hand back every vote someone inquired about
+        for (Iterator<Integer> it = attempt.inquiries.iterator(); it.hasNext();) {
+            yieldTo(attempt, it.next());
+            it.remove();
+        }
+    }
+
+    private void onInquire(String resource, int requestTs, int from) {
+        Attempt attempt = current(resource, requestTs);
+        if (attempt == null || attempt.inCriticalSection || !attempt.granted.contains(from))
+            return; // Our RELEASE will free the vote
+        if (attempt.failed) {
+            yieldTo(attempt, from);
+        } else {
+            attempt.inquiries.add(from);
+        }
+    }
+
+    private void yieldTo(Attempt attempt, int voter) {
+        attempt.granted.remove(voter);
+        send(voter, new PeerMessage(PeerMessage.YIELD, clock.getAsInt(), nodeId,
+                attempt.resource, String.valueOf(attempt.timestamp)));
+    }
+
+    private Attempt current(String resource, int requestTs) {
+        Attempt attempt = attempts.get(resource);
+        return (attempt != null && attempt.timestamp == requestTs) ? attempt : null;
+    }
+
+    // =================================================================
+    // OUTBOUND
+    // =================================================================
+
+    // Called with the lock held; the message goes out in flush()
+    private void send(int target, PeerMessage message) {
+        outbox.add(new Outgoing(target, message));
+    }
+
+    private void flush() {
+        List<Outgoing> batch;
+        lock.lock();
+        try {
+            if (outbox.isEmpty())
+                return;
+            batch = new ArrayList<>(outbox);
+            outbox.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Outgoing out : batch) {
+            if (out.target == nodeId) {
+                onMessage(out.message); // We are in our own quorum
+                continue;
+            }
+            CompletableFuture<Boolean> sent = sender.apply(out.target, out.message);
+            if (out.message.type == PeerMessage.QUORUM_REQUEST) {
+                // Unreachable member: its vote can't be collected, the attempt fails
+                sent.thenAccept(delivered -> {
+                    if (!delivered)
+                        onUnreachable(out.message.arg(0), out.message.timestamp, out.target);
+                });
+            }
+        }
+    }
+
+    private void onUnreachable(String resource, int requestTs, int member) {
+        lock.lock();
+        try {
+            Attempt attempt = current(resource, requestTs);
+            if (attempt != null && attempt.unreachable == null) {
+                attempt.unreachable = member;
+                attempt.changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // =================================================================
+    // STATE
+    // =================================================================
+
+    /**
+     * A request identified by (timestamp, node); lower sorts first (higher priority).
+     */
+    private static final class Ticket implements Comparable<Ticket> {
+        final int timestamp;
+        final int node;
+
+        Ticket(int timestamp, int node) {
+            this.timestamp = timestamp;
+            this.node = node;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            if (timestamp != o.timestamp)
+                return Integer.compare(timestamp, o.timestamp);
+            return Integer.compare(node, o.node);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Ticket && ((Ticket) o).timestamp == timestamp && ((Ticket) o).node == node;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * timestamp + node;
+        }
+    }
+
+    private static final class Vote {
+        Ticket votedFor;
+        boolean inquired;
+        final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+        final Set<Ticket> failed = new HashSet<>(); // Waiting requests already sent FAILED
+    }
+
+    private final class Attempt {
+        final String resource;
+        final int timestamp;
+        final Set<Integer> granted = new HashSet<>();
+        final Set<Integer> inquiries = new HashSet<>();
+        final Condition changed = lock.newCondition();
+        boolean failed;
+        boolean inCriticalSection;
+        Integer unreachable; // Member our REQUEST could not be delivered to
+
+        Attempt(String resource, int timestamp) {
+            this.resource = resource;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final class Outgoing {
+        final int target;
+        final PeerMessage message;
+
+        Outgoing(int target, PeerMessage message) {
+            this.target = target;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package algorithm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+
+/**
+ * ReplicationStreams
+ *
+ * Ordered, pipelined replication to every peer, off the critical section.
+ * - One outbound stream per peer. replicate() only queues, so the caller
+ * (a critical section) never waits on the network.
+ * - Messages are sent in queue order with up to repl.window of them in
+ * flight (sent, not yet acknowledged), instead of one round trip each.
+ * - On the wire each message is wrapped in REPLICATE_STREAM with
+ * (epoch, seq, base): epoch is the sender's start time, seq numbers the
+ * stream, base is the oldest unacknowledged seq.
+ * - The peer delivers each sender's stream exactly once, in seq order, and
+ * answers REPLICATE_ACK with the last seq it has applied (cumulative).
+ * Duplicates are re-acknowledged; a message past a gap is dropped until the
+ * gap is resent. A message the peer could not apply yet (RETRY) is not
+ * acknowledged, so it is resent like a lost one. One that can never be
+ * applied (REJECTED: malformed, bad data) is logged and acknowledged, so it
+ * doesn't stall the rest of the stream; the full sync repairs it.
+ * - Unacknowledged messages are resent in order (go-back-N) after the
+ * peer's ack timeout.
+ * - A DEAD peer's stream pauses and keeps queuing, up to repl.maxQueued per
+ * peer. Past that the oldest unsent message is dropped and its future
+ * completes with false (the bank's outbox then replays it).
+ * - Queue depth per peer (queued + in flight) is exposed for monitoring.
+ * - Durability levels: a writer can wait until LOCAL (no peer), ONE peer or
+ * a MAJORITY of the cluster (counting itself) has applied its write. The
+ * wait ends with the fastest acks that satisfy the level.
+ */
+public class ReplicationStreams {
+
+    /**
+     * How many copies a write needs before it is acknowledged to the client.
+     */
+    public enum Durability {
+        LOCAL, // Local commit only; replication continues in the background
+        ONE, // Local commit + any one peer
+        MAJORITY; // Local commit + enough peers for a majority of all nodes
+
+        public static Durability parse(String value, Durability defaultValue) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (RuntimeException e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    /**
+     * What the receiver did with a delivered message.
+     */
+    public enum Outcome {
+        APPLIED, // Done: acknowledge
+        RETRY, // Not now (DB unavailable, account not here yet): leave unacknowledged
+        REJECTED // Can never be applied: log, acknowledge and leave it to the full sync
+    }
+
+    private final int ownerId;
+    private final long epoch = System.currentTimeMillis();
+    private final BiFunction<Integer, PeerMessage, CompletableFuture<Boolean>> transport;
+    private final IntPredicate isAvailable;
+    private final IntToLongFunction ackTimeoutMs;
+    private final int window;
+    private final int maxQueued;
+    private final ConcurrentHashMap<Integer, Outbound> outbound = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Inbound> inbound = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong resent = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public ReplicationStreams(int ownerId, Collection<Integer> peerIds,
+            BiFunction<Integer, PeerMessage, CompletableFuture<Boolean>> transport, IntPredicate isAvailable,
+            IntToLongFunction ackTimeoutMs, int window, int maxQueued) {
+        this.ownerId = ownerId;
+        this.transport = transport;
+        this.isAvailable = isAvailable;
+        this.ackTimeoutMs = ackTimeoutMs;
+        this.window = Math.max(1, window);
+        this.maxQueued = Math.max(1, maxQueued);
+        for (int peerId : peerIds) {
+            if (peerId != ownerId)
+                outbound.put(peerId, new Outbound(peerId));
+        }
+    }
+
+    // =================================================================
+    // SENDER
+    // =================================================================
+
+    /**
+     * Queue a replication message for a peer.
+     *
+     * @return future completed with true once the peer has applied it, or
+     *         false if it was dropped from a full queue
+     */
+    public CompletableFuture<Boolean> replicate(int peerId, PeerMessage message) {
+        Outbound o = outbound.get(peerId);
+        if (o == null)
+            return CompletableFuture.completedFuture(false);
+        Entry e = new Entry(message);
+        Entry evicted = null;
+        synchronized (o) {
+            if (o.queued.size() >= maxQueued)
+                evicted = o.queued.poll();
+            o.queued.add(e);
+            pump(o);
+        }
+        if (evicted != null) {
+            dropped.incrementAndGet();
+            evicted.applied.complete(false);
+        }
+        return e.applied;
+    }
+
+    /**
+     * Completes once the peer has applied (true) or we have dropped (false)
+     * everything queued for it so far. Acks are cumulative and drops take the
+     * oldest first, so the newest entry settles last.
+     */
+    public CompletableFuture<Boolean> whenDrained(int peerId) {
+        Outbound o = outbound.get(peerId);
+        if (o == null)
+            return CompletableFuture.completedFuture(true);
+        synchronized (o) {
+            Entry last = !o.queued.isEmpty() ? o.queued.peekLast() : o.inFlight.peekLast();
+            return (last == null) ? CompletableFuture.completedFuture(true) : last.applied;
+        }
+    }
+
+    /**
+     * REPLICATE_ACK: args = [receiverId, epoch, seq].
+     */
+    public void onAck(PeerMessage ack) {
+        if (ack.argCount() < 3)
+            return;
+        Outbound o = outbound.get(Integer.parseInt(ack.arg(0)));
+        if (o == null || Long.parseLong(ack.arg(1)) != epoch)
+            return; // Ack for an earlier run of this node
+        long seq = Long.parseLong(ack.arg(2));
+        ArrayDeque<Entry> done = new ArrayDeque<>();
+        synchronized (o) {
+            while (!o.inFlight.isEmpty() && o.inFlight.peek().seq <= seq)
+                done.add(o.inFlight.poll());
+            pump(o);
+        }
+        for (Entry e : done)
+            e.applied.complete(true);
+    }
+
+    /**
+     * Resend what the peer has not acknowledged in time, and restart streams
+     * whose peer came back. Called periodically from the node's timer.
+     */
+    public void checkTimeouts() {
+        long now = System.nanoTime();
+        for (Outbound o : outbound.values()) {
+            synchronized (o) {
+                if (!isAvailable.test(o.peerId))
+                    continue;
+                Entry oldest = o.inFlight.peek();
+                if (oldest != null && now - oldest.sentAt > ackTimeoutMs.applyAsLong(o.peerId) * 1_000_000L) {
+                    // Go-back-N: the peer drops anything past a gap, so resend all of it in order
+                    for (Entry e : o.inFlight) {
+                        transmit(o, e);
+                        resent.incrementAndGet();
+                    }
+                }
+                pump(o);
+            }
+        }
+    }
+
+    // Caller holds o's monitor
+    private void pump(Outbound o) {
+        if (!isAvailable.test(o.peerId))
+            return; // Keep queuing; checkTimeouts restarts the stream when the peer is back
+        while (o.inFlight.size() < window && !o.queued.isEmpty()) {
+            Entry e = o.queued.poll();
+            e.seq = o.nextSeq++;
+            o.inFlight.add(e);
+            transmit(o, e);
+        }
+    }
+
+    // Caller holds o's monitor
+    private void transmit(Outbound o, Entry e) {
+        e.sentAt = System.nanoTime();
+        String[] inner = e.message.rawArgs();
+        String[] args = new String[6 + inner.length];
+        args[0] = String.valueOf(ownerId);
+        args[1] = String.valueOf(epoch);
+        args[2] = String.valueOf(e.seq);
+        args[3] = String.valueOf(o.inFlight.peek().seq); // base
+        args[4] = String.valueOf(e.message.type);
+        args[5] = String.valueOf(e.message.timestamp);
+        System.arraycopy(inner, 0, args, 6, inner.length);
+        // A failed write marks the peer DEAD (pausing the stream); the timeout resends
+        transport.apply(o.peerId, new PeerMessage(PeerMessage.REPLICATE_STREAM, 0, ownerId, args));
+    }
+
+    /**
+     * Peer acks required for a durability level (the local node counts
+     * towards a majority).
+     */
+    public int acksNeeded(Durability durability) {
+        int peers = outbound.size();
+        switch (durability) {
+            case ONE:
+                return Math.min(1, peers);
+            case MAJORITY:
+                return (peers + 1) / 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Future that completes with true as soon as `needed` of the acks are
+     * true, or with false once that can no longer happen.
+     */
+    public static CompletableFuture<Boolean> quorum(List<CompletableFuture<Boolean>> acks, int needed) {
+        if (needed <= 0)
+            return CompletableFuture.completedFuture(true);
+        if (acks.size() < needed)
+            return CompletableFuture.completedFuture(false);
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicInteger applied = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        int tolerable = acks.size() - needed;
+        for (CompletableFuture<Boolean> ack : acks) {
+            ack.whenComplete((ok, error) -> {
+                if (Boolean.TRUE.equals(ok)) {
+                    if (applied.incrementAndGet() == needed)
+                        result.complete(true);
+                } else if (failed.incrementAndGet() > tolerable) {
+                    result.complete(false);
+                }
+            });
+        }
+        return result;
+    }
+
+    // =================================================================
+    // RECEIVER
+    // =================================================================
+
+    /**
+     * Handle a REPLICATE_STREAM envelope: deliver the wrapped message if it is
+     * the next one from its sender, then acknowledge. Runs deliver under the
+     * sender's lock, so one sender's messages are applied one at a time.
+     *
+     * @param deliver - APPLIED or REJECTED acknowledge the message; RETRY
+     *                leaves it unacknowledged, and the sender's timeout
+     *                resends it. A throw counts as REJECTED (the same input
+     *                would throw again).
+     */
+    public void receive(PeerMessage envelope, Function<PeerMessage, Outcome> deliver) {
+        if (envelope.argCount() < 6)
+            return;
+        int senderId = Integer.parseInt(envelope.arg(0));
+        long senderEpoch = Long.parseLong(envelope.arg(1));
+        long seq = Long.parseLong(envelope.arg(2));
+        long base = Long.parseLong(envelope.arg(3));
+
+        Inbound in = inbound.computeIfAbsent(senderId, id -> new Inbound());
+        long applied;
+        in.lock.lock();
+        try {
+            if (in.epoch != senderEpoch) {
+                // New stream (sender restarted, or we did): start at its oldest unacked message
+                in.epoch = senderEpoch;
+                in.expected = base;
+            } else if (base > in.expected) {
+                in.expected = base; // Sender already has acks past this point
+            }
+            if (seq == in.expected) {
+                String[] args = envelope.rawArgs();
+                PeerMessage message = new PeerMessage(Byte.parseByte(args[4]), Integer.parseInt(args[5]), senderId,
+                        Arrays.copyOfRange(args, 6, args.length));
+                Outcome outcome;
+                try {
+                    outcome = deliver.apply(message);
+                } catch (RuntimeException e) {
+                    System.err.println("Node " + ownerId + " replication handler error: " + e.getMessage());
+                    outcome = Outcome.REJECTED;
+                }
+                if (outcome == Outcome.REJECTED) {
+                    rejected.incrementAndGet();
+                    System.err.println("Node " + ownerId + " REJECTED replication #" + seq + " from Node " + senderId
+                            + ", skipped (left to the full sync): " + message);
+                }
+                if (outcome != Outcome.RETRY)
+                    in.expected++;
+            }
+            applied = in.expected - 1;
+        } finally {
+            in.lock.unlock();
+        }
+        // Cumulative: also re-acks duplicates and answers a gap with the last in-order seq
+        transport.apply(senderId, new PeerMessage(PeerMessage.REPLICATE_ACK, 0, ownerId,
+                String.valueOf(ownerId), String.valueOf(senderEpoch), String.valueOf(applied)));
+    }
+
+    // =================================================================
+    // METRICS
+    // =================================================================
+
+    /**
+     * Messages queued or in flight to a peer.
+     */
+    public int queueDepth(int peerId) {
+        Outbound o = outbound.get(peerId);
+        if (o == null)
+            return 0;
+        synchronized (o) {
+            return o.queued.size() + o.inFlight.size();
+        }
+    }
+
+    public Map<Integer, Integer> queueDepths() {
+        Map<Integer, Integer> depths = new TreeMap<>();
+        for (int peerId : outbound.keySet())
+            depths.put(peerId, queueDepth(peerId));
+        return depths;
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public long resentCount() {
+        return resent.get();
+    }
+
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    private static final class Outbound {
+        final int peerId;
+        final ArrayDeque<Entry> queued = new ArrayDeque<>(); // Not sent yet
+        final ArrayDeque<Entry> inFlight = new ArrayDeque<>(); // Sent, awaiting ack, in seq order
+        long nextSeq = 1;
+
+        Outbound(int peerId) {
+            this.peerId = peerId;
+        }
+    }
+
+    private static final class Inbound {
+        // Delivery may block on the database; an explicit lock so a virtual thread doesn't pin
+        final ReentrantLock lock = new ReentrantLock();
+        long epoch = -1;
+        long expected;
+    }
+
+    private static final class Entry {
+        final PeerMessage message;
+        final CompletableFuture<Boolean> applied = new CompletableFuture<>();
+        long seq;
+        long sentAt;
+
+        Entry(PeerMessage message) {
+            this.message = message;
+        }
+    }
+}
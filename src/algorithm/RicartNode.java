@@ -2,11 +2,29 @@ package algorithm;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.IntConsumer;
 
 /**
  * RicartNode
@@ -15,14 +33,62 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Algorithm.
  * - Handles the logic of REQUEST and REPLY messages.
  * - Uses Lamport Logical Clocks for ordering.
+ * - Keeps a hybrid logical clock (HybridClock) for stamping transactions;
+ * REQUEST and REPLY carry it so causally later writes get later stamps.
  * - Manages the Critical Section entry/exit.
+ * - Keeps separate request state per resource (account), so locks on
+ * different accounts are requested, held and released independently.
+ * - One REQUEST can cover several resources (e.g. both sides of a transfer).
+ * - Optional sticky leases (lock.leaseMs): after a full grant the node keeps
+ * the resource and re-enters locally until a peer asks for it or it expires.
+ * - mutex.strategy=maekawa swaps the all-peers round for quorum voting
+ * (QuorumMutex); the requestAccess API is the same.
+ * - Waiting for REPLYs is bounded by per-peer RTT estimates: a peer that goes
+ * silent or DEAD withdraws the round (TIMED_OUT) instead of entering without
+ * permission. Only peers confirmed crashed are left out of new rounds.
+ * - requestAccessAsync: no thread waits for REPLYs; the future is completed
+ * by handleReply (or the timeout check) and the critical section then runs
+ * on the node's CS executor.
+ * - replicate(): per-peer ordered, acknowledged replication streams
+ * (ReplicationStreams), so a critical section only queues its writes.
+ * - A REPLY (or, in Maekawa mode, the RELEASE) waits until the peer has
+ * applied those writes, so the next holder never works on a balance that
+ * is missing the previous holder's changes.
  */
 public class RicartNode {
 
+    /**
+     * Outcome of requestAccess.
+     */
+    public enum LockResult {
+        GRANTED, // Critical section was run
+        TIMED_OUT // Permission not obtained; critical section was NOT run
+    }
+
     private final int nodeId;
     private final int port;
     private final ConcurrentHashMap<Integer, InetSocketAddress> allNodes; // <ID, IP:Port>
     private final int N; // Total number of nodes
+    private final PeerConnectionPool connectionPool; // Warm outbound channels to peers
+    // Pool send that reports failed writes to the failure detector
+    private final BiFunction<Integer, PeerMessage, CompletableFuture<Boolean>> peerSender;
+    private PeerListener listener; // Inbound transport
+    private final FailureDetector failureDetector; // Live/suspect/dead view of allNodes
+    private final AdmissionControl admission; // Load shedding for inbound bulk work
+    private final long heartbeatMs;
+    private final long leaseMs; // Sticky lock lease after a full grant (0 = off)
+    private final QuorumMutex quorumMutex; // Set when mutex.strategy=maekawa
+    private final RttEstimator rtt; // Per-peer round trip, from heartbeat echoes
+    private final long lockWaitMs; // Upper bound on one acquisition
+    private final ScheduledExecutorService timer; // Heartbeats and lock-wait checks
+    private final ExecutorService csExecutor; // Runs critical sections of async requests
+    private final ReplicationStreams replication; // Ordered outbound queues to each peer
+
+    private static final long REPLICATION_CHECK_MS = 100; // Resend / restart check for replication streams
+
+    // Handler threads for inbound messages (fixed, independent of connection count)
+    private static final int HANDLER_THREADS = NodeExecutors
+            .handlerThreads(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
 
     public int getNodeId() {
         return nodeId;
@@ -37,28 +103,70 @@ public class RicartNode {
 
     // Lamport's Logical Clock
     private final AtomicInteger lamportClock = new AtomicInteger(0);
-    private volatile int requestTimestamp = Integer.MAX_VALUE; // Timestamp of the current request
+    // Hybrid logical clock for transaction stamps (physical time + counter)
+    private final HybridClock hybridClock = new HybridClock();
 
-    // State Flags and Queues
-    private volatile boolean requestingCS = false;
-    private volatile String targetResource = null; // The resource we want to lock (e.g., "user1")
-    private volatile int repliesReceived = 0;
-    private final CopyOnWriteArrayList<Integer> replyDeferredQueue = new CopyOnWriteArrayList<>();
+    // Marks the HLC arg appended to a REQUEST's resource list (account ids never start with it)
+    private static final String HLC_ARG_PREFIX = "@";
 
-    // Message Types
-    private static final String MSG_REQUEST = "REQUEST";
-    private static final String MSG_REPLY = "REPLY";
+    // Per-resource Ricart-Agrawala state, only for accounts in use or leased
+    // (an entry is dropped once idle; see removeIfIdle)
+    private final ConcurrentHashMap<String, LockState> locks = new ConcurrentHashMap<>();
+    // Our outstanding requests, by their (unique) timestamp
+    private final Map<Integer, LockRequest> pending = new HashMap<>();
+
+    // Guards every LockState and LockRequest. An explicit lock instead of synchronized so a
+    // virtual thread waiting for replies does not pin its carrier thread.
+    private final ReentrantLock stateLock = new ReentrantLock();
 
     public RicartNode(int nodeId, int port, ConcurrentHashMap<Integer, InetSocketAddress> allNodes) {
         this.nodeId = nodeId;
         this.port = port;
         this.allNodes = allNodes;
         this.N = allNodes.size();
+        this.heartbeatMs = NodeConfig.getLong("fd.heartbeatMs", 500);
+        this.failureDetector = new FailureDetector(nodeId, allNodes.keySet(), heartbeatMs,
+                NodeConfig.getInt("fd.suspectPhi", 3), NodeConfig.getInt("fd.deadPhi", 8),
+                NodeConfig.getLong("fd.confirmDownMs", 30000));
+        this.connectionPool = new PeerConnectionPool(nodeId, allNodes, failureDetector);
+        this.admission = new AdmissionControl(NodeConfig.getInt("admission.maxBulk", 2));
+        this.leaseMs = NodeConfig.getLong("lock.leaseMs", 0);
+        this.lockWaitMs = NodeConfig.getLong("lock.maxWaitMs", 5000);
+        this.rtt = new RttEstimator(NodeConfig.getLong("rtt.minRtoMs", 20), NodeConfig.getLong("rtt.maxRtoMs", 2000),
+                NodeConfig.getLong("rtt.initialRtoMs", 1000));
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Node-" + nodeId + "-Timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.csExecutor = NodeExecutors.newTaskExecutor("Node-" + nodeId + "-CS",
+                Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        // Ack timeout follows the peer's RTO, so a fast LAN resends quickly
+        long replAckMs = NodeConfig.getLong("repl.ackTimeoutMs", 1000);
+        // The streams and the quorum are handed the pool, failure detector and clock
+        // themselves, never this node: a subclass may still be constructing
+        this.peerSender = pooledSender(connectionPool, failureDetector);
+        RttEstimator peerRtt = rtt;
+        this.replication = new ReplicationStreams(nodeId, allNodes.keySet(), peerSender,
+                failureDetector::isAvailable, peer -> Math.max(replAckMs, 4 * peerRtt.rto(peer)),
+                NodeConfig.getInt("repl.window", 64), NodeConfig.getInt("repl.maxQueued", 10000));
+        this.quorumMutex = "maekawa".equalsIgnoreCase(NodeConfig.getString("mutex.strategy", "ricart"))
+                ? new QuorumMutex(nodeId, allNodes.keySet(), lamportClock::incrementAndGet, peerSender,
+                        failureDetector::isAvailable)
+                : null;
     }
 
     public void start() {
-        // Start the server thread to listen for incoming requests/replies
-        new Thread(this::startServer, "Node-" + nodeId + "-Listener").start();
+        // Start the listener for incoming requests/replies
+        connectionPool.setInboundHandler(this::dispatchMessage);
+        startServer();
+
+        // Heartbeats feed the failure detector and keep probing dead peers
+        timer.scheduleAtFixedRate(this::sendHeartbeats, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(replication::checkTimeouts, REPLICATION_CHECK_MS, REPLICATION_CHECK_MS,
+                TimeUnit.MILLISECONDS);
+        if (leaseMs > 0) // Leases that just run out leave nothing else to drop their entry
+            timer.scheduleAtFixedRate(this::pruneIdleLocks, leaseMs, leaseMs, TimeUnit.MILLISECONDS);
 
         // Start a thread to periodically request the critical section (for testing)
         // COMMENTED OUT FOR PRODUCTION USE:
@@ -75,9 +183,24 @@ public class RicartNode {
         return lamportClock.incrementAndGet();
     }
 
-    // Rule 2: Update based on received message
+    // Rule 2: Update based on received message (one atomic step, so concurrent
+    // handlers can't lose an update)
     private void updateClock(int receivedTimestamp) {
-        lamportClock.set(Math.max(lamportClock.get(), receivedTimestamp) + 1);
+        lamportClock.accumulateAndGet(receivedTimestamp, (current, received) -> Math.max(current, received) + 1);
+    }
+
+    /**
+     * New hybrid logical clock stamp for a local event (e.g. a transaction row).
+     */
+    protected long nextHlc() {
+        return hybridClock.now();
+    }
+
+    /**
+     * Merge a stamp received from a peer (replicated row, REQUEST, REPLY).
+     */
+    protected long observeHlc(long remoteHlc) {
+        return hybridClock.update(remoteHlc);
     }
 
     // =================================================================
@@ -85,177 +208,322 @@ public class RicartNode {
     // =================================================================
 
     private void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // Selector-driven listener: one I/O thread plus a bounded handler pool,
+        // instead of a new thread per accepted socket. Lock control gets its own
+        // lane so replication and sync dumps never delay a REPLY.
+        listener = new PeerListener(port, "Node-" + nodeId, this::dispatchMessage, HANDLER_THREADS,
+                AdmissionControl::isControl);
+        try {
+            listener.start();
             System.out.println("Node " + nodeId + " started listener on port " + port);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleIncomingMessage(clientSocket), "Node-" + nodeId + "-Handler").start();
-            }
         } catch (IOException e) {
-            // Server socket closed on exit
+            System.err.println("Node " + nodeId + " failed to start listener on port " + port + ": " + e.getMessage());
         }
     }
 
-    private void handleIncomingMessage(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+    private void dispatchMessage(PeerMessage message, PeerListener.Reply reply) {
+        try {
+            // Legacy text line from an older node (rollout compatibility)
+            if (message.type == PeerMessage.TEXT) {
+                message = WireCodec.fromLegacy(message.arg(0));
+            }
 
-            String message = in.readLine();
-            if (message != null) {
-                // Phase 1: Handle QUERY_ACCOUNT messages for fault-tolerant login
-                if (message.startsWith("QUERY_ACCOUNT:")) {
-                    String[] parts = message.split(":");
-                    if (parts.length >= 3) {
-                        String userId = parts[1];
-                        String password = parts[2];
-                        String response = onAccountQuery(userId, password);
-                        out.println(response);
-                    }
-                    return;
-                }
+            // Only HEARTBEATs feed the failure detector: their arrivals are
+            // what phi models (lock/replication bursts would skew the gaps)
+            if (message.type == PeerMessage.HEARTBEAT && message.senderId > 0 && message.senderId != nodeId) {
+                failureDetector.heartbeat(message.senderId);
+            }
 
-                // Phase 2: Handle QUERY_SESSION messages for Session Locking
-                if (message.startsWith("QUERY_SESSION:")) {
-                    String[] parts = message.split(":");
-                    if (parts.length >= 2) {
-                        String userId = parts[1];
-                        String response = onSessionQuery(userId);
-                        out.println(response);
-                    }
-                    return;
-                }
+            // Admission control: shed bulk dumps when too many are running,
+            // so they can't starve REQUEST/REPLY handling
+            AdmissionControl.Lane lane = AdmissionControl.laneOf(message.type);
+            if (!admission.tryAdmit(lane)) {
+                System.err.println("Node " + nodeId + " BUSY: shedding " + PeerMessage.typeName(message.type)
+                        + " (" + admission + ")");
+                reply.send(new PeerMessage(PeerMessage.BUSY, 0, nodeId, PeerMessage.typeName(message.type)));
+                return;
+            }
+            try {
+                handleAdmitted(message, reply);
+            } finally {
+                admission.release(lane);
+            }
+        } catch (NumberFormatException e) {
+            // Handle bad message format
+            System.err.println("Node " + nodeId + " failed to parse message timestamps/IDs: " + e.getMessage());
+        }
+    }
 
-                // Check if this is a replication message (doesn't have timestamp format)
-                if (message.startsWith("REPLICATE_")) {
-                    // Route to subclass for handling (ATMNode)
-                    onReplicationMessage(message);
-                    return;
+    /**
+     * Route a message that passed admission control.
+     */
+    private void handleAdmitted(PeerMessage message, PeerListener.Reply reply) {
+        switch (message.type) {
+            // Phase 1: Handle QUERY_ACCOUNT messages for fault-tolerant login
+            case PeerMessage.QUERY_ACCOUNT:
+                if (message.argCount() >= 2) {
+                    reply.send(onAccountQuery(message.arg(0), message.arg(1)));
                 }
+                break;
 
-                // Check for SYNC messages (New Feature: Sync-on-Connect)
-                if (message.startsWith("SYNC_REQUEST")) {
-                    onSyncRequest(out);
-                    return;
+            // Phase 2: Handle QUERY_SESSION messages for Session Locking
+            case PeerMessage.QUERY_SESSION:
+                if (message.argCount() >= 1) {
+                    reply.send(PeerMessage.text(onSessionQuery(message.arg(0))));
                 }
+                break;
+
+            // Replication messages: route to subclass for handling (ATMNode)
+            case PeerMessage.REPLICATE_CREATE:
+            case PeerMessage.REPLICATE_UPDATE:
+            case PeerMessage.REPLICATE_PASSWORD_UPDATE:
+            case PeerMessage.REPLICATE_LOG:
+            case PeerMessage.REPLICATE_OP:
+                onReplicationMessage(message);
+                break;
+
+            // Ordered replication stream: unwrap, apply once and in order, then ack
+            case PeerMessage.REPLICATE_STREAM:
+                replication.receive(message, this::onReplicationMessage);
+                break;
+
+            case PeerMessage.REPLICATE_ACK:
+                replication.onAck(message);
+                break;
+
+            // SYNC messages (Sync-on-Connect)
+            case PeerMessage.SYNC_REQUEST: {
+                PeerMessage response = onSyncRequest();
+                if (response != null)
+                    reply.send(response);
+                break;
+            }
 
-                if (message.startsWith("SYNC_RESPONSE:")) {
-                    onSyncResponse(message);
-                    return;
-                }
+            case PeerMessage.SYNC_RESPONSE:
+                onSyncResponse(message);
+                break;
 
-                // Check for LOGS messages (New Feature: Admin Distributed Logs)
-                if (message.startsWith("QUERY_TRANSACTION_LOGS")) {
-                    onLogQuery(out);
-                    return;
-                }
+            // LOGS messages (Admin Distributed Logs)
+            case PeerMessage.QUERY_TRANSACTION_LOGS: {
+                PeerMessage response = onLogQuery();
+                if (response != null)
+                    reply.send(response);
+                break;
+            }
 
-                String[] parts = message.split(":");
-                if (parts.length < 3) {
-                    // Log the malformed message but don't crash
-                    System.err.println("Node " + nodeId + " received malformed message: " + message);
-                    return;
+            case PeerMessage.REQUEST:
+                // Update clock based on received message timestamp
+                updateClock(message.timestamp);
+                handleRequest(message.timestamp, message.senderId, requestedResources(message));
+                break;
+
+            case PeerMessage.REPLY:
+                updateClock(message.timestamp);
+                if (message.argCount() > 2)
+                    observeHlc(Long.parseLong(message.arg(2)));
+                handleReply(message.senderId, message.arg(0, null), Integer.parseInt(message.arg(1, "0")));
+                break;
+
+            case PeerMessage.HEARTBEAT:
+                // Already recorded above; echo the token so the sender can time the round trip
+                if (message.argCount() > 0) {
+                    sendMessageAsync(message.senderId, new PeerMessage(PeerMessage.HEARTBEAT_ACK,
+                            lamportClock.get(), nodeId, message.arg(0)));
                 }
+                break;
+
+            case PeerMessage.HEARTBEAT_ACK:
+                rtt.sample(message.senderId, (System.nanoTime() - Long.parseLong(message.arg(0))) / 1_000_000.0);
+                break;
+
+            case PeerMessage.QUORUM_REQUEST:
+            case PeerMessage.GRANT:
+            case PeerMessage.RELEASE:
+            case PeerMessage.INQUIRE:
+            case PeerMessage.YIELD:
+            case PeerMessage.FAILED:
+                updateClock(message.timestamp);
+                if (quorumMutex != null) {
+                    quorumMutex.onMessage(message);
+                } else {
+                    System.err.println("Node " + nodeId + " got " + message + " but mutex.strategy is not maekawa");
+                }
+                break;
 
-                String msgType = parts[0];
-                int receivedTimestamp;
-                int senderId;
+            case PeerMessage.BUSY:
+                // A peer shed something we sent it; the sender's own retry covers it
+                System.err.println("Node " + nodeId + ": Node " + message.senderId + " is busy, shed our "
+                        + message.arg(0, "message"));
+                break;
 
-                try {
-                    receivedTimestamp = Integer.parseInt(parts[1]);
-                    senderId = Integer.parseInt(parts[2]);
-                } catch (NumberFormatException nfe) {
-                    System.err.println("Node " + nodeId + " failed to parse message timestamps/IDs: " + message);
-                    return;
-                }
+            default:
+                // Log the malformed message but don't crash
+                System.err.println("Node " + nodeId + " received malformed message: " + message);
+        }
+    }
 
-                // Update clock based on received message timestamp
-                updateClock(receivedTimestamp);
-
-                if (msgType.equals(MSG_REQUEST)) {
-                    // REQUEST:Timestamp:NodeID:ResourceID
-                    String requestedResource = (parts.length > 3) ? parts[3] : "GLOBAL";
-                    handleRequest(receivedTimestamp, senderId, requestedResource);
-                } else if (msgType.equals(MSG_REPLY)) {
-                    handleReply(senderId);
-                }
+    // A REQUEST carries one or more resource ids (none from very old nodes),
+    // then the sender's HLC stamp
+    private List<String> requestedResources(PeerMessage message) {
+        List<String> resources = new ArrayList<>(message.argCount());
+        for (int i = 0; i < message.argCount(); i++) {
+            String arg = message.arg(i);
+            if (arg.startsWith(HLC_ARG_PREFIX)) {
+                observeHlc(Long.parseLong(arg.substring(HLC_ARG_PREFIX.length())));
+            } else {
+                resources.add(arg);
             }
-        } catch (IOException | NumberFormatException e) {
-            // Handle connection reset or bad message format
-            System.err.println("Node " + nodeId + " error handling message: " + e.getMessage());
         }
+        if (resources.isEmpty())
+            return Collections.singletonList("GLOBAL");
+        return resources;
     }
 
     // =================================================================
     // 3. RICART-AGRAWALA CORE LOGIC
     // =================================================================
 
-    private synchronized void handleRequest(int receivedTimestamp, int senderId, String requestedResource) {
-
-        boolean replyImmediately = false;
+    /**
+     * @param requestedResources - every resource the REQUEST asks for (one round)
+     */
+    private void handleRequest(int receivedTimestamp, int senderId, List<String> requestedResources) {
+        DeferredReply deferred = null;
 
-        // Condition 1: Node is NOT requesting the CS.
-        if (!requestingCS) {
-            replyImmediately = true;
-        }
-        // Condition 2: Node IS requesting CS, but for a DIFFERENT resource.
-        // (Granular Locking: I only care if you want the SAME thing I want).
-        else if (targetResource != null && !targetResource.equals(requestedResource)) {
-            System.out.println("Node " + nodeId + " DONT CARE about resource '" + requestedResource + "' (I want '"
-                    + targetResource + "'). Replying.");
-            replyImmediately = true;
-        }
-        // Condition 3: Node IS requesting CS for the SAME resource. Check Priority.
-        else {
-            if (receivedTimestamp < requestTimestamp ||
-                    (receivedTimestamp == requestTimestamp && senderId < nodeId)) {
+        stateLock.lock();
+        try {
+            for (String resource : requestedResources) {
+                LockState lock = locks.get(resource);
+
+                // Condition 1: Node is NOT requesting this resource (granular locking:
+                // requests for other accounts never conflict).
+                if (lock == null)
+                    continue;
+                if (lock.active == null) {
+                    // A peer wants it: an idle lease ends here (it will get our REPLY)
+                    if (lock.leaseExpiresAt != 0) {
+                        System.out.println("Node " + nodeId + " GIVING UP LEASE on [" + resource + "] to " + senderId);
+                        lock.leaseExpiresAt = 0;
+                        removeIfIdle(lock);
+                    }
+                    continue;
+                }
 
-                replyImmediately = true;
+                // Condition 2: Node IS requesting the SAME resource. Check Priority.
+                LockRequest mine = lock.active;
+                if (receivedTimestamp < mine.timestamp ||
+                        (receivedTimestamp == mine.timestamp && senderId < nodeId))
+                    continue;
+
+                // We win on this resource: the REPLY waits until we release it
+                if (deferred == null)
+                    deferred = new DeferredReply(senderId, receivedTimestamp, requestedResources.get(0));
+                deferred.blockers++;
+                lock.deferred.add(deferred);
             }
+        } finally {
+            stateLock.unlock();
         }
 
-        if (replyImmediately) {
-            System.out.println("Node " + nodeId + " REPLYING immediately to " + senderId);
-            sendReply(senderId);
+        if (deferred == null) {
+            System.out.println("Node " + nodeId + " REPLYING immediately to " + senderId + " for "
+                    + requestedResources);
+            sendReply(senderId, requestedResources.get(0), receivedTimestamp);
         } else {
             // Defer the reply
-            System.out.println(
-                    "Node " + nodeId + " DEFERRING REPLY to " + senderId + " for resource " + requestedResource);
-            replyDeferredQueue.add(senderId);
+            System.out.println("Node " + nodeId + " DEFERRING REPLY to " + senderId + " for resources "
+                    + requestedResources);
         }
     }
 
-    private synchronized void handleReply(int senderId) {
-        repliesReceived++;
-        System.out.println("Node " + nodeId + " received REPLY from " + senderId +
-                " (Total replies: " + repliesReceived + "/" + (N - 1) + ")");
-
-        // Notify the waiting thread in requestAccess that a reply has arrived
-        this.notifyAll();
+    /**
+     * @param resource    - first resource of the answered REQUEST (null from legacy nodes)
+     * @param requestTime - timestamp of the REQUEST being answered (0 if unknown)
+     */
+    private void handleReply(int senderId, String resource, int requestTime) {
+        LockRequest complete = null;
+        stateLock.lock();
+        try {
+            // Our timestamps are unique, so the echoed one identifies the request;
+            // a REPLY to an earlier, already finished round finds nothing
+            LockRequest request = (requestTime > 0) ? pending.get(requestTime) : awaitingReplyFrom(senderId);
+            if (request == null)
+                return;
+
+            if (request.awaiting.remove(senderId)) {
+                request.repliesReceived++;
+                System.out.println("Node " + nodeId + " received REPLY from " + senderId + " for "
+                        + request.resources + " (Total replies: " + request.repliesReceived + "/"
+                        + request.nodesMessaged + ")");
+
+                // Last one in completes the request's future
+                if (finishIfDone(request))
+                    complete = request;
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        if (complete != null)
+            complete.granted.complete(complete);
     }
 
-    private void enterCriticalSection() {
-        System.out.println("\n*** Node " + nodeId + " GRANTED ACCESS TO CS ***");
+    // Legacy REPLYs don't echo the request: credit the first one still waiting on that peer
+    private LockRequest awaitingReplyFrom(int senderId) {
+        for (LockRequest request : pending.values()) {
+            if (request.awaiting.contains(senderId))
+                return request;
+        }
+        return null;
+    }
 
-        // 1. Execute the Critical Section
-        onCriticalSection(requestTimestamp);
+    private void enterCriticalSection(LockRequest request, IntConsumer criticalSection) {
+        System.out.println("\n*** Node " + nodeId + " GRANTED ACCESS TO CS " + request.resources + " ***");
 
-        // 2. Exit Critical Section
-        exitCriticalSection();
+        try {
+            // 1. Execute the Critical Section
+            criticalSection.accept(request.entryTimestamp);
+        } finally {
+            // 2. Exit Critical Section
+            exitCriticalSection(request);
+        }
     }
 
-    private synchronized void exitCriticalSection() {
-        requestingCS = false;
-        repliesReceived = 0;
-        requestTimestamp = Integer.MAX_VALUE;
+    private void exitCriticalSection(LockRequest request) {
+        List<DeferredReply> release = new ArrayList<>();
+        stateLock.lock();
+        try {
+            pending.remove(request.timestamp, request);
+            for (String resource : request.resources) {
+                LockState lock = locks.get(resource);
+                lock.active = null;
+
+                // Keep a lease only if every peer granted it and nobody is waiting:
+                // then no peer holds an unused REPLY from us for this resource
+                if (leaseMs > 0 && request.fullyGranted && lock.deferred.isEmpty()) {
+                    lock.leaseExpiresAt = System.nanoTime() + leaseMs * 1_000_000L;
+                    if (!request.leased)
+                        lock.leaseTimestamp = request.timestamp;
+                } else {
+                    lock.leaseExpiresAt = 0;
+                }
+
+                // A deferred REPLY goes out once every resource blocking it is released
+                for (DeferredReply deferred : lock.deferred) {
+                    if (--deferred.blockers == 0)
+                        release.add(deferred);
+                }
+                lock.deferred.clear();
+            }
+        } finally {
+            stateLock.unlock();
+        }
 
-        System.out.println("--- Node " + nodeId + " EXIT CS and PROCESSING DEFERRED REPLIES ("
-                + replyDeferredQueue.size() + ") ---");
+        System.out.println("--- Node " + nodeId + (request.timedOut ? " WITHDRAWING REQUEST " : " EXIT CS ")
+                + request.resources + " and PROCESSING DEFERRED REPLIES (" + release.size() + ") ---");
 
         // 3. Send REPLY to all deferred requests
-        for (int deferredId : replyDeferredQueue) {
-            sendReply(deferredId);
+        for (DeferredReply deferred : release) {
+            sendReply(deferred.peerId, deferred.resource, deferred.requestTimestamp);
         }
-        replyDeferredQueue.clear();
     }
 
     // =================================================================
@@ -263,89 +531,532 @@ public class RicartNode {
     // =================================================================
 
     // Exposed for manual triggering (e.g. via ATMApp)
-    public void requestAccess(String resourceId) {
-        // Set state for request and get timestamp
-        requestingCS = true;
-        targetResource = resourceId;
-        requestTimestamp = tickAndGet();
-        repliesReceived = 0;
+    public LockResult requestAccess(String resourceId) {
+        return requestAccess(resourceId, this::onCriticalSection);
+    }
 
-        System.out.println("\nNode " + nodeId + " SENDING REQUEST for [" + resourceId + "], Time: " + requestTimestamp);
+    /**
+     * Acquire the distributed lock on one resource, run the critical section
+     * with the request timestamp, then release it.
+     */
+    public LockResult requestAccess(String resourceId, IntConsumer criticalSection) {
+        return requestAccess(Collections.singletonList(resourceId), criticalSection);
+    }
 
-        // Send request message to all other nodes
-        // Format: REQUEST:Timestamp:NodeID:ResourceID
-        String message = MSG_REQUEST + ":" + requestTimestamp + ":" + nodeId + ":" + resourceId;
-        int nodesMessaged = 0;
-        for (int targetId : allNodes.keySet()) {
-            if (targetId != nodeId) {
-                if (sendMessage(targetId, message)) {
-                    nodesMessaged++;
+    /**
+     * Acquire the distributed locks on several resources in ONE round (a single
+     * REQUEST carries every id), run the critical section, then release them all.
+     * - Resources are taken in canonical (sorted) order, so callers asking for
+     * overlapping sets can never deadlock.
+     * - Different resources are locked independently: many callers can hold or
+     * wait on different accounts at once. Local callers wanting the same
+     * resource take turns.
+     * - Blocks the caller; the critical section runs on the calling thread.
+     *
+     * @return GRANTED if the critical section ran, TIMED_OUT if permission
+     *         could not be obtained (the critical section was not run)
+     */
+    public LockResult requestAccess(Collection<String> resourceIds, IntConsumer criticalSection) {
+        List<String> resources = canonical(resourceIds);
+
+        // One outstanding request per resource per node
+        takeTurns(resources).join();
+        try {
+            if (quorumMutex != null)
+                return enterQuorumCriticalSection(resources, criticalSection);
+            return runCriticalSection(acquire(resources).join(), criticalSection);
+        } finally {
+            releaseTurns(resources);
+        }
+    }
+
+    /**
+     * Non-blocking requestAccess on one resource, running onCriticalSection.
+     */
+    public CompletableFuture<LockResult> requestAccessAsync(String resourceId) {
+        return requestAccessAsync(Collections.singletonList(resourceId), this::onCriticalSection);
+    }
+
+    /**
+     * Non-blocking requestAccess: returns at once. No thread is parked while
+     * REPLYs are outstanding; the future is completed once the round is
+     * decided, after the critical section has run on the CS executor.
+     * - Same ordering, fairness and timeout rules as requestAccess.
+     * - In Maekawa mode the quorum wait still occupies a CS executor thread.
+     *
+     * @return future completed with GRANTED or TIMED_OUT
+     */
+    public CompletableFuture<LockResult> requestAccessAsync(Collection<String> resourceIds,
+            IntConsumer criticalSection) {
+        List<String> resources = canonical(resourceIds);
+        CompletableFuture<LockResult> result;
+        if (quorumMutex != null) {
+            result = takeTurns(resources)
+                    .thenApplyAsync(v -> enterQuorumCriticalSection(resources, criticalSection), csExecutor);
+        } else {
+            result = takeTurns(resources)
+                    .thenCompose(v -> acquire(resources))
+                    .thenApplyAsync(request -> runCriticalSection(request, criticalSection), csExecutor);
+        }
+        return result.whenComplete((lockResult, error) -> releaseTurns(resources));
+    }
+
+    private static List<String> canonical(Collection<String> resourceIds) {
+        return new ArrayList<>(new TreeSet<>(resourceIds));
+    }
+
+    /**
+     * Wait (without a thread) for this node's turn on every resource, in order.
+     */
+    private CompletableFuture<Void> takeTurns(List<String> resources) {
+        CompletableFuture<Void> turns = CompletableFuture.completedFuture(null);
+        for (String resource : resources) {
+            turns = turns.thenCompose(v -> takeTurn(resource));
+        }
+        return turns;
+    }
+
+    // Looked up under stateLock: a held or awaited turn keeps the entry from being removed
+    private CompletableFuture<Void> takeTurn(String resource) {
+        stateLock.lock();
+        try {
+            LockState lock = locks.computeIfAbsent(resource, LockState::new);
+            if (!lock.turnTaken) {
+                lock.turnTaken = true;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> turn = new CompletableFuture<>();
+            lock.turnWaiters.add(turn);
+            return turn;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    // Hand each turn straight to the next local caller (FIFO), in reverse order
+    private void releaseTurns(List<String> resources) {
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            CompletableFuture<Void> next;
+            stateLock.lock();
+            try {
+                LockState lock = locks.get(resources.get(i));
+                next = lock.turnWaiters.poll();
+                if (next == null) {
+                    lock.turnTaken = false;
+                    removeIfIdle(lock);
                 }
+            } finally {
+                stateLock.unlock();
             }
+            if (next != null)
+                next.complete(null);
         }
+    }
 
-        // TIMEOUT LOGIC: Wait for replies using wait/notify instead of sleep
-        long startTime = System.currentTimeMillis();
-        long timeout = 2000; // Reduced to 2 seconds for better responsiveness
+    /**
+     * Drop a resource's entry once nothing refers to it: no local turn or
+     * round, no deferred REPLY, no live lease. Caller holds stateLock.
+     */
+    private void removeIfIdle(LockState lock) {
+        if (!lock.turnTaken && lock.turnWaiters.isEmpty() && lock.active == null && lock.deferred.isEmpty()
+                && (lock.leaseExpiresAt == 0 || System.nanoTime() - lock.leaseExpiresAt > 0))
+            locks.remove(lock.resource, lock);
+    }
 
-        synchronized (this) {
-            while (requestingCS && repliesReceived < nodesMessaged) {
-                long timeLeft = timeout - (System.currentTimeMillis() - startTime);
-                if (timeLeft <= 0) {
-                    System.err.println(
-                            "!!! TIMEOUT WAITING FOR REPLIES (" + repliesReceived + "/" + nodesMessaged + ") !!!");
-                    System.err.println("!!! ASSUMING CRITICAL SECTION PERMISSION !!!");
-                    break; // Force entry on timeout
-                }
+    private void pruneIdleLocks() {
+        stateLock.lock();
+        try {
+            for (LockState lock : locks.values()) {
+                removeIfIdle(lock);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
 
-                try {
-                    // Wait for handleReply to notify us, or until timeout
-                    this.wait(timeLeft);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
+    private LockResult runCriticalSection(LockRequest request, IntConsumer criticalSection) {
+        if (request.timedOut) {
+            // Withdraw: release what we hold and answer anyone we deferred
+            exitCriticalSection(request);
+            return LockResult.TIMED_OUT;
+        }
+        enterCriticalSection(request, criticalSection);
+        return LockResult.GRANTED;
+    }
+
+    /**
+     * Maekawa mode: collect a quorum for each resource in canonical order
+     * (votes are per resource), run the critical section, release them all.
+     * If any quorum times out, every vote collected so far is given back.
+     */
+    private LockResult enterQuorumCriticalSection(List<String> resources, IntConsumer criticalSection) {
+        List<String> acquired = new ArrayList<>(resources.size());
+        int timestamp = 0;
+        try {
+            for (String resource : resources) {
+                // Added first: a timed-out attempt must still be withdrawn
+                acquired.add(resource);
+                timestamp = quorumMutex.acquire(resource, lockWaitMs);
+                if (timestamp < 0)
+                    return LockResult.TIMED_OUT;
             }
+            System.out.println("\n*** Node " + nodeId + " GRANTED ACCESS TO CS " + resources + " (quorum) ***");
+            criticalSection.accept(timestamp);
+            awaitReplicationBeforeRelease();
+            return LockResult.GRANTED;
+        } finally {
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                quorumMutex.release(acquired.get(i));
+            }
+            System.out.println("--- Node " + nodeId + (timestamp < 0 ? " WITHDREW " : " EXIT CS ") + resources
+                    + " (quorum) ---");
         }
+    }
 
-        if (requestingCS) {
-            enterCriticalSection();
+    /**
+     * Maekawa mode: our votes go to a node we don't know, so keep them until
+     * every live peer has applied our writes (bounded by lock.maxWaitMs).
+     */
+    private void awaitReplicationBeforeRelease() {
+        List<CompletableFuture<?>> barriers = new ArrayList<>();
+        for (int peerId : allNodes.keySet()) {
+            if (peerId != nodeId && isPeerAvailable(peerId))
+                barriers.add(replicationBarrier(peerId));
         }
+        try {
+            CompletableFuture.allOf(barriers.toArray(new CompletableFuture<?>[0])).get(lockWaitMs,
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("Node " + nodeId + " releasing quorum before every peer applied our writes");
+        } catch (ExecutionException e) {
+            // Settled either way
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fast path: every resource is still leased from an earlier full grant,
+     * so re-enter without any messages.
+     *
+     * @return the local request, or null if a normal round is needed
+     */
+    private LockRequest tryLease(List<String> resources) {
+        if (leaseMs <= 0)
+            return null;
+
+        stateLock.lock();
+        try {
+            long now = System.nanoTime();
+            int priority = Integer.MAX_VALUE;
+            for (String resource : resources) {
+                LockState lock = locks.get(resource);
+                if (lock.active != null || lock.leaseExpiresAt == 0 || now - lock.leaseExpiresAt > 0)
+                    return null;
+                // Any peer REQUEST seen since is newer than the oldest winning round
+                priority = Math.min(priority, lock.leaseTimestamp);
+            }
+
+            LockRequest request = new LockRequest(priority, resources, Collections.emptyList());
+            request.entryTimestamp = tickAndGet();
+            request.leased = true;
+            request.fullyGranted = true;
+            for (String resource : resources) {
+                locks.get(resource).active = request;
+            }
+            System.out.println("\nNode " + nodeId + " RE-ENTERING " + resources + " under lease (no messages)");
+            return request;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Start a round (or re-enter under a lease).
+     *
+     * @return future completed with the request once every live peer has
+     *         replied, or with timedOut set if the round could not complete
+     */
+    private CompletableFuture<LockRequest> acquire(List<String> resources) {
+        LockRequest leased = tryLease(resources);
+        if (leased != null)
+            return CompletableFuture.completedFuture(leased);
+
+        // Only a confirmed crash is left out: a peer that is merely DEAD to phi
+        // may be paused or partitioned while holding the lock
+        List<Integer> targets = new ArrayList<>();
+        for (int targetId : allNodes.keySet()) {
+            if (targetId != nodeId && !failureDetector.isConfirmedDown(targetId)) {
+                targets.add(targetId);
+            }
+        }
+
+        // Set state for request and get timestamp
+        LockRequest request;
+        stateLock.lock();
+        try {
+            request = new LockRequest(tickAndGet(), resources, targets);
+            pending.put(request.timestamp, request);
+            for (String resource : resources) {
+                locks.get(resource).active = request;
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        final int myTimestamp = request.timestamp;
+
+        System.out.println("\nNode " + nodeId + " SENDING REQUEST for " + resources + ", Time: " + myTimestamp);
+
+        // Send request message to all other nodes AT ONCE (parallel fan-out).
+        // A dead peer's connect timeout no longer delays the others, and the
+        // wait is measured from the first send.
+        String[] args = resources.toArray(new String[resources.size() + 1]);
+        args[resources.size()] = HLC_ARG_PREFIX + hybridClock.now();
+        PeerMessage message = new PeerMessage(PeerMessage.REQUEST, myTimestamp, nodeId, args);
+        request.startTime = System.currentTimeMillis();
+
+        for (int targetId : targets) {
+            sendMessageAsync(targetId, message).thenAccept(delivered -> {
+                if (!delivered)
+                    onRequestUndeliverable(request, targetId);
+            });
+        }
+
+        checkReplies(request);
+        return request.granted;
+    }
+
+    /**
+     * TIMEOUT LOGIC: runs on the timer about once per RTO while a round is
+     * open, re-checking the peers we still need. Never enter without the
+     * REPLY of every peer asked; one that goes DEAD or silent meanwhile
+     * withdraws the round.
+     */
+    private void checkReplies(LockRequest request) {
+        long pollMs = lockWaitMs;
+        boolean complete;
+        stateLock.lock();
+        try {
+            if (request.finished)
+                return;
+            Integer silent = null;
+            for (int peerId : request.awaiting) {
+                long rto = rtt.rto(peerId);
+                long heard = failureDetector.millisSinceHeard(peerId);
+                // DEAD is only phi's suspicion: the peer may still be in the critical section
+                if (!isPeerAvailable(peerId) || heard > silenceLimitMs(rto))
+                    silent = peerId;
+                pollMs = Math.min(pollMs, rto);
+            }
+
+            long waited = System.currentTimeMillis() - request.startTime;
+            if (!request.awaiting.isEmpty() && (silent != null || waited >= lockWaitMs)) {
+                // Slow, partitioned or suspected dead: it may be in the critical section
+                System.err.println("!!! TIMEOUT WAITING FOR REPLIES " + request.resources + " ("
+                        + request.repliesReceived + "/" + request.nodesMessaged + ", waited " + waited + "ms"
+                        + (silent != null ? ", Node " + silent + " silent" : "") + ") !!!");
+                System.err.println("!!! NOT ENTERING CRITICAL SECTION: request withdrawn !!!");
+                request.timedOut = true;
+            }
+            complete = finishIfDone(request);
+            pollMs = Math.min(Math.max(pollMs, 10), lockWaitMs - waited);
+        } finally {
+            stateLock.unlock();
+        }
+
+        if (complete) {
+            request.granted.complete(request);
+        } else {
+            timer.schedule(() -> checkReplies(request), pollMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Decide the round if every REPLY is in or it timed out. Caller holds
+     * stateLock and completes request.granted after unlocking.
+     *
+     * @return true if this call decided the round
+     */
+    private boolean finishIfDone(LockRequest request) {
+        if (request.finished || (!request.timedOut && !request.awaiting.isEmpty()))
+            return false;
+        request.finished = true;
+        // Eligible for a lease only if every peer answered (no timeout, none skipped)
+        request.fullyGranted = request.awaiting.isEmpty() && request.repliesReceived == N - 1;
+        return true;
+    }
+
+    // A live peer is heard at least every heartbeat; allow two missed beats plus
+    // a few round trips before treating it as stalled
+    private long silenceLimitMs(long rtoMs) {
+        return 2 * heartbeatMs + 4 * rtoMs;
+    }
+
+    /**
+     * A REQUEST could not be delivered. One failed send doesn't prove the peer
+     * is down (it may be slow or briefly partitioned, and could be in the
+     * critical section), so the round times out instead of going on without it.
+     */
+    private void onRequestUndeliverable(LockRequest request, int peerId) {
+        boolean complete = false;
+        stateLock.lock();
+        try {
+            if (request.awaiting.contains(peerId) && !request.finished) {
+                System.err.println("!!! REQUEST " + request.resources + " NOT DELIVERED TO Node " + peerId
+                        + ": NOT ENTERING CRITICAL SECTION, request withdrawn !!!");
+                request.timedOut = true;
+                complete = finishIfDone(request);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        if (complete)
+            request.granted.complete(request);
     }
 
-    private void sendReply(int targetId) {
+    /**
+     * REPLY once the requester has every write we made before it (see
+     * replicationBarrier): otherwise its critical section could check a
+     * balance that is missing our last debit. Held for at most half of
+     * lockWaitMs, so the requester still gets the lock before it gives up.
+     */
+    private void sendReply(int targetId, String resource, int requestTimestamp) {
+        CompletableFuture<?> barrier = replicationBarrier(targetId);
+        if (barrier.isDone()) {
+            sendReplyNow(targetId, resource, requestTimestamp);
+            return;
+        }
+        System.out.println("Node " + nodeId + " HOLDING REPLY to " + targetId + " on [" + resource
+                + "] until it has applied our writes");
+        // Whatever the outcome: a write given up on (left to the full sync) must not hold the lock
+        // forever. The timeout goes on a copy, the barrier itself is shared with other waiters.
+        long holdMs = lockWaitMs / 2;
+        barrier.copy().orTimeout(holdMs, TimeUnit.MILLISECONDS).whenComplete((applied, error) -> {
+            if (error instanceof TimeoutException)
+                System.err.println("Node " + nodeId + " REPLY to " + targetId + " on [" + resource
+                        + "] sent before it applied our writes (held " + holdMs + "ms)");
+            sendReplyNow(targetId, resource, requestTimestamp);
+        });
+    }
+
+    /**
+     * Completes once the peer has applied every replication message this node
+     * has produced so far. Subclasses that replicate outside replicate() (e.g.
+     * through a durable outbox) override it.
+     */
+    protected CompletableFuture<?> replicationBarrier(int peerId) {
+        return replication.whenDrained(peerId);
+    }
+
+    private void sendReplyNow(int targetId, String resource, int requestTimestamp) {
         // Clock tick before sending the reply
         int currentClock = tickAndGet();
 
-        String message = MSG_REPLY + ":" + currentClock + ":" + nodeId;
-        sendMessage(targetId, message);
+        // Asynchronous: deferred REPLYs released together share one batch frame.
+        // The REPLY names the resource, echoes the request it answers and carries
+        // our HLC, so the next holder stamps its writes after ours.
+        sendMessageAsync(targetId, new PeerMessage(PeerMessage.REPLY, currentClock, nodeId,
+                resource, String.valueOf(requestTimestamp), String.valueOf(hybridClock.now())));
     }
 
-    protected boolean sendMessage(int targetId, String message) {
-        InetSocketAddress targetAddress = allNodes.get(targetId);
-        if (targetAddress == null)
-            return false;
+    /**
+     * True unless the failure detector believes the peer is DEAD.
+     * Dead peers are still probed in the background by the heartbeat loop.
+     */
+    protected boolean isPeerAvailable(int peerId) {
+        return failureDetector.isAvailable(peerId);
+    }
 
-        if (targetAddress.isUnresolved()) {
-            System.err.println("Node " + nodeId + " WARNING: Cannot resolve address for Node " + targetId +
-                    " (" + targetAddress.getHostName() + "). Skipping.");
-            return false;
+    public FailureDetector.State getPeerState(int peerId) {
+        return failureDetector.state(peerId);
+    }
+
+    /**
+     * Current lock-wait timeout estimate for a peer (srtt + 4 * rttvar).
+     */
+    public long getPeerRtoMs(int peerId) {
+        return rtt.rto(peerId);
+    }
+
+    /**
+     * Queue a replication message on the peer's ordered stream. Never blocks.
+     *
+     * @return future completed with true once the peer has applied it
+     */
+    protected CompletableFuture<Boolean> replicate(int peerId, PeerMessage message) {
+        return replication.replicate(peerId, message);
+    }
+
+    /**
+     * Replication streams (queue depth per peer, drops, resends).
+     */
+    public ReplicationStreams getReplication() {
+        return replication;
+    }
+
+    /**
+     * Inbound admission counters (messages admitted / shed per lane).
+     */
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    private void sendHeartbeats() {
+        // The token is our send time, echoed back in HEARTBEAT_ACK to sample the RTT
+        PeerMessage heartbeat = new PeerMessage(PeerMessage.HEARTBEAT, lamportClock.get(), nodeId,
+                String.valueOf(System.nanoTime()));
+        for (int targetId : allNodes.keySet()) {
+            if (targetId == nodeId)
+                continue;
+            // Quiet path: a dead peer is expected to fail here, no need to log every probe
+            connectionPool.sendAsync(targetId, heartbeat).thenAccept(delivered -> {
+                if (!delivered)
+                    failureDetector.unreachable(targetId);
+            });
         }
+        failureDetector.refresh();
+    }
 
-        try {
-            Socket socket = new Socket();
+    /**
+     * Queue a message on the peer's outbound batch without blocking the caller.
+     *
+     * @return future completed with true if the message was written
+     */
+    protected CompletableFuture<Boolean> sendMessageAsync(int targetId, PeerMessage message) {
+        return peerSender.apply(targetId, message);
+    }
+
+    private static BiFunction<Integer, PeerMessage, CompletableFuture<Boolean>> pooledSender(
+            PeerConnectionPool pool, FailureDetector failureDetector) {
+        return (targetId, message) -> pool.sendAsync(targetId, message).thenApply(delivered -> {
+            if (!delivered)
+                failureDetector.unreachable(targetId);
+            return delivered;
+        });
+    }
+
+    /**
+     * Request/response exchange with one peer on a short-lived connection
+     * (account queries, sync dumps). The reply uses the same wire format.
+     *
+     * @param readTimeoutMs - socket read timeout (0 = wait indefinitely)
+     * @return the peer's response, or null if the peer is unreachable
+     */
+    protected PeerMessage queryPeer(int targetId, PeerMessage request, int readTimeoutMs) {
+        InetSocketAddress targetAddress = allNodes.get(targetId);
+        if (targetAddress == null || targetAddress.isUnresolved())
+            return null;
+
+        try (Socket socket = new Socket()) {
             socket.connect(new InetSocketAddress(targetAddress.getAddress(), targetAddress.getPort()), 500); // 500ms
                                                                                                              // timeout
-
-            try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                out.println(message);
-            }
-            socket.close();
-            return true;
+            socket.setSoTimeout(readTimeoutMs);
+            OutputStream out = socket.getOutputStream();
+            out.write(WireCodec.encodeFor(request, connectionPool.isBinaryWire()));
+            out.flush();
+            return WireCodec.read(new BufferedInputStream(socket.getInputStream()));
         } catch (IOException e) {
-            System.err.println("Node " + nodeId + " failed to communicate with Node " + targetId +
-                    " (" + targetAddress + "). Node is assumed down.");
-            return false;
+            return null;
         }
     }
 
@@ -363,12 +1074,8 @@ public class RicartNode {
             for (int i = 0; i < 5; i++) {
                 // Wait a random amount of time before requesting the CS again
                 Thread.sleep((long) (Math.random() * 2000) + 1000);
+                // Blocks until the CS has been entered and exited
                 requestAccess("TEST_RESOURCE");
-
-                // Wait for the process to enter/exit the CS before requesting again
-                while (requestingCS) {
-                    Thread.sleep(100);
-                }
             }
             System.out.println("\nNode " + nodeId + " finished its scheduled requests.");
         } catch (InterruptedException e) {
@@ -384,10 +1091,14 @@ public class RicartNode {
     /**
      * Handle replication messages from peers
      * Can be overridden by subclasses (e.g. ATMNode)
+     *
+     * @return RETRY if the message could not be applied yet (a stream
+     *         resends it), REJECTED if it never can be
      */
-    protected void onReplicationMessage(String message) {
+    protected ReplicationStreams.Outcome onReplicationMessage(PeerMessage message) {
         // Default: do nothing
         System.out.println("Node " + nodeId + " received replication message (not handled): " + message);
+        return ReplicationStreams.Outcome.APPLIED;
     }
 
     /**
@@ -405,29 +1116,90 @@ public class RicartNode {
      * Phase 1: Fault-Tolerant Login
      * Can be overridden by subclasses (e.g. ATMNode)
      */
-    protected String onAccountQuery(String userId, String password) {
+    protected PeerMessage onAccountQuery(String userId, String password) {
         // Default: return not found
-        return "ACCOUNT_NOT_FOUND";
+        return new PeerMessage(PeerMessage.ACCOUNT_RESPONSE, 0, nodeId, "ACCOUNT_NOT_FOUND");
     }
 
     /**
-     * Handle header-less SYNC_REQUEST. subclass should write response to out.
+     * Handle SYNC_REQUEST. Subclass returns the SYNC_RESPONSE to send back.
      */
-    protected void onSyncRequest(PrintWriter out) {
+    protected PeerMessage onSyncRequest() {
         // Default: do nothing
+        return null;
     }
 
     /**
      * Handle SYNC_RESPONSE containing full DB dump
      */
-    protected void onSyncResponse(String message) {
+    protected void onSyncResponse(PeerMessage message) {
         // Default: do nothing
     }
 
     /**
-     * Handle QUERY_TRANSACTION_LOGS. subclass should write response to out.
+     * Handle QUERY_TRANSACTION_LOGS. Subclass returns the response to send back.
      */
-    protected void onLogQuery(PrintWriter out) {
+    protected PeerMessage onLogQuery() {
         // Default: do nothing
+        return null;
+    }
+
+    /**
+     * Ricart-Agrawala state for one resource. Fields are guarded by stateLock.
+     */
+    private final class LockState {
+        final String resource;
+        boolean turnTaken; // A local caller owns this resource's turn
+        final ArrayDeque<CompletableFuture<Void>> turnWaiters = new ArrayDeque<>(); // Next local callers, FIFO
+        LockRequest active; // Our request currently waiting on / holding this resource
+        long leaseExpiresAt; // System.nanoTime() deadline of an idle lease (0 = none)
+        int leaseTimestamp; // Timestamp of the round that won the lease
+        final List<DeferredReply> deferred = new ArrayList<>();
+
+        LockState(String resource) {
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * One REQUEST round, covering one or more resources.
+     */
+    private final class LockRequest {
+        final int timestamp;
+        final List<String> resources;
+        final Set<Integer> awaiting; // Peers we still expect a REPLY from
+        final CompletableFuture<LockRequest> granted = new CompletableFuture<>(); // Completed when decided
+        long startTime;
+        int repliesReceived;
+        int nodesMessaged;
+        int entryTimestamp; // Passed to the critical section
+        boolean leased; // Re-entered under a lease, no messages sent
+        boolean fullyGranted; // Every peer replied
+        boolean timedOut; // Gave up waiting; the critical section is not entered
+        boolean finished; // Round decided (granted completed or about to be)
+
+        LockRequest(int timestamp, List<String> resources, List<Integer> targets) {
+            this.timestamp = timestamp;
+            this.entryTimestamp = timestamp;
+            this.resources = resources;
+            this.awaiting = new HashSet<>(targets);
+            this.nodesMessaged = targets.size();
+        }
+    }
+
+    /**
+     * A REPLY held back until every local request that beat it is released.
+     */
+    private static final class DeferredReply {
+        final int peerId;
+        final int requestTimestamp;
+        final String resource; // First resource of that REQUEST (echoed in the REPLY)
+        int blockers;
+
+        DeferredReply(int peerId, int requestTimestamp, String resource) {
+            this.peerId = peerId;
+            this.requestTimestamp = requestTimestamp;
+            this.resource = resource;
+        }
     }
-}
\ No newline at end of file
+}
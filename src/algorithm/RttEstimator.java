@@ -0,0 +1,82 @@
+package algorithm;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RttEstimator
+ *
+ * Per-peer round-trip time estimate, used to size lock wait deadlines.
+ * - Samples come from HEARTBEAT / HEARTBEAT_ACK echoes on the control lane.
+ * - Smoothed RTT and RTT variance as in TCP (Jacobson/Karels, RFC 6298):
+ * srtt += (r - srtt) / 8, rttvar += (|r - srtt| - rttvar) / 4.
+ * - RTO = srtt + 4 * rttvar, clamped to [minRtoMs, maxRtoMs]. A peer with no
+ * samples yet gets the initial RTO.
+ */
+public class RttEstimator {
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private final long minRtoMs;
+    private final long maxRtoMs;
+    private final long initialRtoMs;
+    private final ConcurrentHashMap<Integer, Estimate> peers = new ConcurrentHashMap<>();
+
+    public RttEstimator(long minRtoMs, long maxRtoMs, long initialRtoMs) {
+        this.minRtoMs = minRtoMs;
+        this.maxRtoMs = Math.max(minRtoMs, maxRtoMs);
+        this.initialRtoMs = initialRtoMs;
+    }
+
+    /**
+     * Record one measured round trip to a peer.
+     */
+    public void sample(int peerId, double rttMs) {
+        if (rttMs < 0)
+            return;
+        Estimate e = peers.computeIfAbsent(peerId, id -> new Estimate());
+        synchronized (e) {
+            if (e.samples == 0) {
+                e.srtt = rttMs;
+                e.rttvar = rttMs / 2;
+            } else {
+                e.rttvar += BETA * (Math.abs(rttMs - e.srtt) - e.rttvar);
+                e.srtt += ALPHA * (rttMs - e.srtt);
+            }
+            e.samples++;
+        }
+    }
+
+    /**
+     * Retransmission-style timeout for a peer, in milliseconds.
+     */
+    public long rto(int peerId) {
+        Estimate e = peers.get(peerId);
+        if (e == null)
+            return initialRtoMs;
+        synchronized (e) {
+            if (e.samples == 0)
+                return initialRtoMs;
+            long rto = (long) Math.ceil(e.srtt + 4 * e.rttvar);
+            return Math.min(maxRtoMs, Math.max(minRtoMs, rto));
+        }
+    }
+
+    /**
+     * Smoothed RTT in milliseconds, or -1 if nothing has been measured yet.
+     */
+    public double srtt(int peerId) {
+        Estimate e = peers.get(peerId);
+        if (e == null)
+            return -1;
+        synchronized (e) {
+            return e.samples == 0 ? -1 : e.srtt;
+        }
+    }
+
+    private static final class Estimate {
+        double srtt;
+        double rttvar;
+        long samples;
+    }
+}
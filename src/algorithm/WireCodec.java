@@ -0,0 +1,460 @@
+package algorithm;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * WireCodec
+ *
+ * Encodes/decodes PeerMessage for the peer protocol.
+ *
+ * Binary frame (version 1):
+ * [MAGIC:1][VERSION:1][TYPE:1][LENGTH:4][PAYLOAD:LENGTH]
+ * PAYLOAD = [timestamp:4][senderId:4][argc:4] then per arg [len:4][UTF-8 bytes]
+ * (len = -1 encodes a null arg)
+ *
+ * A BATCH frame carries several complete frames back to back in its payload,
+ * so messages headed to the same peer can share one write.
+ *
+ * Legacy text lines (REQUEST:ts:id:resource, REPLICATE_LOG:a~b~c, ...) are still
+ * understood so old and new nodes can talk during a rollout. MAGIC is not a
+ * printable character, so a reader can tell the two apart from the first byte.
+ */
+public final class WireCodec {
+
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 7;
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    // SYNC_RESPONSE layout: args = [accountCount, accounts..., logs...]
+    public static final int SYNC_ACCOUNT_FIELDS = 6; // id, name, phone, passHash, balance, role
+    public static final int SYNC_LOG_FIELDS = 8; // timestamp, type, user, amount, target, node, clock, hlc
+    public static final int SYNC_LOG_FIELDS_V1 = 7; // Same without hlc (older nodes)
+
+    private WireCodec() {
+    }
+
+    // =================================================================
+    // 1. BINARY FRAMES
+    // =================================================================
+
+    public static byte[] encode(PeerMessage m) {
+        String[] args = m.rawArgs();
+        byte[][] encoded = new byte[args.length][];
+        int payload = 12;
+        for (int i = 0; i < args.length; i++) {
+            payload += 4;
+            if (args[i] != null) {
+                encoded[i] = args[i].getBytes(StandardCharsets.UTF_8);
+                payload += encoded[i].length;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload);
+        buf.put(MAGIC).put(VERSION).put(m.type).putInt(payload);
+        buf.putInt(m.timestamp).putInt(m.senderId).putInt(args.length);
+        for (byte[] arg : encoded) {
+            if (arg == null) {
+                buf.putInt(-1);
+            } else {
+                buf.putInt(arg.length).put(arg);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Wrap already encoded frames into one BATCH frame.
+     */
+    public static byte[] encodeBatch(List<byte[]> frames) {
+        int payload = 0;
+        for (byte[] f : frames)
+            payload += f.length;
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload);
+        buf.put(MAGIC).put(VERSION).put(PeerMessage.BATCH).putInt(payload);
+        for (byte[] f : frames)
+            buf.put(f);
+        return buf.array();
+    }
+
+    /**
+     * Decode one complete frame at buf.position(), unpacking BATCH frames,
+     * and pass every message to the sink.
+     */
+    public static void decodeFrames(ByteBuffer buf, java.util.function.Consumer<PeerMessage> sink)
+            throws ProtocolException {
+        int start = buf.position();
+        if (buf.get(start + 1) == VERSION && buf.get(start + 2) == PeerMessage.BATCH) {
+            int end = frameEnd(buf, start);
+            int limit = buf.limit();
+            buf.position(start + HEADER_SIZE).limit(end); // Inner frames may not run past the batch
+            try {
+                while (buf.position() < end) {
+                    if (end - buf.position() < HEADER_SIZE || buf.get(buf.position()) != MAGIC)
+                        throw new ProtocolException("Malformed frame in batch at " + buf.position());
+                    PeerMessage inner = decode(buf);
+                    if (inner != null)
+                        sink.accept(inner);
+                }
+            } finally {
+                buf.limit(limit);
+            }
+            buf.position(end);
+            return;
+        }
+        PeerMessage msg = decode(buf);
+        if (msg != null)
+            sink.accept(msg);
+    }
+
+    /**
+     * Total size of the binary frame starting at buf.position(),
+     * or -1 if the header is not complete yet.
+     */
+    public static int frameLength(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_SIZE)
+            return -1;
+        return HEADER_SIZE + buf.getInt(buf.position() + 3);
+    }
+
+    /**
+     * Decode one complete binary frame starting at buf.position() and advance past it.
+     * Strings are built straight from the buffer bytes.
+     *
+     * Counts and lengths read from the wire are checked against the bytes
+     * left in the frame before anything is allocated.
+     *
+     * @return the message, or null if the frame uses an unknown version (skipped)
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static PeerMessage decode(ByteBuffer buf) throws ProtocolException {
+        int start = buf.position();
+        int end = frameEnd(buf, start);
+        buf.get(); // MAGIC
+        byte version = buf.get();
+        byte type = buf.get();
+        buf.getInt(); // LENGTH, checked by frameEnd
+        if (version != VERSION) {
+            buf.position(end);
+            return null;
+        }
+
+        if (end - buf.position() < 12)
+            throw new ProtocolException("Frame too short: " + (end - start) + " bytes");
+        int timestamp = buf.getInt();
+        int senderId = buf.getInt();
+        int argc = buf.getInt();
+        if (argc < 0 || argc > (end - buf.position()) / 4)
+            throw new ProtocolException("Bad arg count: " + argc);
+        String[] args = new String[argc];
+        for (int i = 0; i < argc; i++) {
+            if (end - buf.position() < 4)
+                throw new ProtocolException("Frame truncated at arg " + i);
+            int len = buf.getInt();
+            if (len < -1 || len > end - buf.position())
+                throw new ProtocolException("Bad length for arg " + i + ": " + len);
+            if (len < 0)
+                continue;
+            if (buf.hasArray()) {
+                args[i] = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+                buf.position(buf.position() + len);
+            } else {
+                byte[] tmp = new byte[len];
+                buf.get(tmp);
+                args[i] = new String(tmp, StandardCharsets.UTF_8);
+            }
+        }
+        if (buf.position() != end)
+            throw new ProtocolException("Frame has " + (end - buf.position()) + " trailing bytes");
+        return new PeerMessage(type, timestamp, senderId, args);
+    }
+
+    /**
+     * End offset of the frame starting at start, checked to lie inside the buffer.
+     */
+    private static int frameEnd(ByteBuffer buf, int start) throws ProtocolException {
+        if (buf.limit() - start < HEADER_SIZE)
+            throw new ProtocolException("Frame header truncated");
+        int length = buf.getInt(start + 3);
+        if (length < 0 || length > buf.limit() - start - HEADER_SIZE)
+            throw new ProtocolException("Bad frame length: " + length);
+        return start + HEADER_SIZE + length;
+    }
+
+    /**
+     * Encode in the requested wire format (binary frame or legacy text line).
+     */
+    public static byte[] encodeFor(PeerMessage m, boolean binary) {
+        if (binary)
+            return encode(m);
+        return (toLegacy(m) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Blocking read of one message (binary frame or text line) from a stream.
+     * Used by request/response clients.
+     *
+     * @return the message, or null at end of stream
+     */
+    public static PeerMessage read(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1)
+            return null;
+
+        if ((byte) first == MAGIC) {
+            DataInputStream data = new DataInputStream(in);
+            byte[] header = new byte[HEADER_SIZE];
+            header[0] = MAGIC;
+            data.readFully(header, 1, HEADER_SIZE - 1);
+            int length = ByteBuffer.wrap(header).getInt(3);
+            if (length < 0 || length > MAX_FRAME_SIZE)
+                throw new IOException("Frame too large: " + length);
+
+            byte[] frame = new byte[HEADER_SIZE + length];
+            System.arraycopy(header, 0, frame, 0, HEADER_SIZE);
+            data.readFully(frame, HEADER_SIZE, length);
+            return decode(ByteBuffer.wrap(frame));
+        }
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = first;
+        while (b != -1 && b != '\n') {
+            line.write(b);
+            b = in.read();
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        if (text.endsWith("\r"))
+            text = text.substring(0, text.length() - 1);
+        return fromLegacy(text);
+    }
+
+    // =================================================================
+    // 2. LEGACY TEXT FORMAT (rollout compatibility)
+    // =================================================================
+
+    public static String toLegacy(PeerMessage m) {
+        String[] args = m.rawArgs();
+        switch (m.type) {
+            case PeerMessage.TEXT:
+                return args.length > 0 ? args[0] : "";
+            case PeerMessage.REQUEST:
+                // Multi-resource requests list every id; older nodes only read the first
+                return "REQUEST:" + m.timestamp + ":" + m.senderId + ":"
+                        + (args.length > 0 ? join(args, 0, args.length, ":") : "GLOBAL");
+            case PeerMessage.REPLY:
+                // Older nodes read only ts:sender and ignore the resource/request fields
+                return "REPLY:" + m.timestamp + ":" + m.senderId
+                        + (args.length > 0 ? ":" + join(args, 0, args.length, ":") : "");
+            case PeerMessage.HEARTBEAT:
+                // Optional echo token; older nodes read only ts:sender
+                return "HEARTBEAT:" + m.timestamp + ":" + m.senderId
+                        + (args.length > 0 ? ":" + args[0] : "");
+            case PeerMessage.HEARTBEAT_ACK:
+            case PeerMessage.QUORUM_REQUEST:
+            case PeerMessage.GRANT:
+            case PeerMessage.RELEASE:
+            case PeerMessage.INQUIRE:
+            case PeerMessage.YIELD:
+            case PeerMessage.FAILED:
+                return PeerMessage.typeName(m.type) + ":" + m.timestamp + ":" + m.senderId + ":"
+                        + join(args, 0, args.length, ":");
+            case PeerMessage.REPLICATE_LOG:
+            case PeerMessage.REPLICATE_OP:
+            case PeerMessage.REPLICATE_STREAM:
+                // Same row layout; '~' because timestamps contain ':'
+                return PeerMessage.typeName(m.type) + ":" + join(args, 0, args.length, "~");
+            case PeerMessage.ACCOUNT_RESPONSE:
+                return join(args, 0, args.length, ":");
+            case PeerMessage.SYNC_REQUEST:
+            case PeerMessage.QUERY_TRANSACTION_LOGS:
+                return PeerMessage.typeName(m.type);
+            case PeerMessage.SYNC_RESPONSE:
+                return "SYNC_RESPONSE:" + syncToLegacy(args);
+            default:
+                return PeerMessage.typeName(m.type) + ":" + join(args, 0, args.length, ":");
+        }
+    }
+
+    /**
+     * Parse a legacy text line. Unknown lines come back as TEXT, and so do
+     * lines missing their timestamp or sender id (dropped as malformed).
+     *
+     * @throws NumberFormatException if a REQUEST/REPLY or quorum line has a bad timestamp or id
+     */
+    public static PeerMessage fromLegacy(String line) {
+        if (line.startsWith("REQUEST:") || line.startsWith("REPLY:") || line.startsWith("HEARTBEAT:")) {
+            String[] parts = line.split(":");
+            if (parts.length < 3)
+                return PeerMessage.text(line);
+            int ts = Integer.parseInt(parts[1]);
+            int sender = Integer.parseInt(parts[2]);
+            if (parts[0].equals("REPLY")) {
+                if (parts.length > 4) // resource, request ts[, hlc]
+                    return new PeerMessage(PeerMessage.REPLY, ts, sender, Arrays.copyOfRange(parts, 3, parts.length));
+                if (parts.length > 3)
+                    return new PeerMessage(PeerMessage.REPLY, ts, sender, parts[3], "0");
+                return new PeerMessage(PeerMessage.REPLY, ts, sender);
+            }
+            if (parts[0].equals("HEARTBEAT")) {
+                if (parts.length > 3)
+                    return new PeerMessage(PeerMessage.HEARTBEAT, ts, sender, parts[3]);
+                return new PeerMessage(PeerMessage.HEARTBEAT, ts, sender);
+            }
+            if (parts.length > 3)
+                return new PeerMessage(PeerMessage.REQUEST, ts, sender, Arrays.copyOfRange(parts, 3, parts.length));
+            return new PeerMessage(PeerMessage.REQUEST, ts, sender, "GLOBAL");
+        }
+        for (byte type = PeerMessage.QUORUM_REQUEST; type <= PeerMessage.HEARTBEAT_ACK; type++) {
+            if (line.startsWith(PeerMessage.typeName(type) + ":")) {
+                String[] parts = line.split(":");
+                if (parts.length < 3)
+                    return PeerMessage.text(line);
+                return new PeerMessage(type, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        Arrays.copyOfRange(parts, 3, parts.length));
+            }
+        }
+        if (line.startsWith("REPLICATE_LOG:")) {
+            return new PeerMessage(PeerMessage.REPLICATE_LOG, 0, 0,
+                    line.substring("REPLICATE_LOG:".length()).split("~"));
+        }
+        if (line.startsWith("REPLICATE_OP:")) {
+            return new PeerMessage(PeerMessage.REPLICATE_OP, 0, 0,
+                    line.substring("REPLICATE_OP:".length()).split("~"));
+        }
+        if (line.startsWith("REPLICATE_STREAM:")) {
+            // Keep trailing empty args: the wrapped message's layout must survive
+            return new PeerMessage(PeerMessage.REPLICATE_STREAM, 0, 0,
+                    line.substring("REPLICATE_STREAM:".length()).split("~", -1));
+        }
+        if (line.startsWith("SYNC_RESPONSE:")) {
+            return new PeerMessage(PeerMessage.SYNC_RESPONSE, 0, 0,
+                    syncFromLegacy(line.substring("SYNC_RESPONSE:".length())));
+        }
+        if (line.startsWith("SYNC_REQUEST")) {
+            return new PeerMessage(PeerMessage.SYNC_REQUEST, 0, 0);
+        }
+        if (line.startsWith("QUERY_TRANSACTION_LOGS")) {
+            return new PeerMessage(PeerMessage.QUERY_TRANSACTION_LOGS, 0, 0);
+        }
+        if (line.startsWith("ACCOUNT_")) {
+            return new PeerMessage(PeerMessage.ACCOUNT_RESPONSE, 0, 0, line.split(":"));
+        }
+
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+            String name = line.substring(0, colon);
+            for (byte type : new byte[] { PeerMessage.REPLICATE_CREATE, PeerMessage.REPLICATE_UPDATE,
+                    PeerMessage.REPLICATE_PASSWORD_UPDATE, PeerMessage.QUERY_ACCOUNT, PeerMessage.QUERY_SESSION,
+                    PeerMessage.BUSY, PeerMessage.REPLICATE_ACK }) {
+                if (PeerMessage.typeName(type).equals(name)) {
+                    return new PeerMessage(type, 0, 0, line.substring(colon + 1).split(":"));
+                }
+            }
+        }
+        return PeerMessage.text(line);
+    }
+
+    // Legacy: id~name~phone~pass~bal~role|...#ts~type~user~amt~target~node~clock|...
+    /**
+     * SYNC_RESPONSE args[0]: the account count, then the width of a log row.
+     * Older nodes expect a bare count (7-field rows) and reject this header
+     * instead of misreading the rows.
+     */
+    public static String syncHeader(int accounts) {
+        return accounts + "," + SYNC_LOG_FIELDS;
+    }
+
+    public static int syncAccountCount(String header) {
+        int comma = header.indexOf(',');
+        return Integer.parseInt(comma < 0 ? header : header.substring(0, comma));
+    }
+
+    public static int syncLogFields(String header) {
+        int comma = header.indexOf(',');
+        return comma < 0 ? SYNC_LOG_FIELDS_V1 : Integer.parseInt(header.substring(comma + 1));
+    }
+
+    private static String syncToLegacy(String[] args) {
+        if (args.length == 0)
+            return "";
+        int accounts = syncAccountCount(args[0]);
+        int logFields = syncLogFields(args[0]);
+        int logStart = 1 + accounts * SYNC_ACCOUNT_FIELDS;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < logStart; i += SYNC_ACCOUNT_FIELDS) {
+            if (i > 1)
+                sb.append("|");
+            sb.append(join(args, i, i + SYNC_ACCOUNT_FIELDS, "~"));
+        }
+        sb.append("#");
+        // Older nodes read the first 7 fields of each row and ignore the hlc
+        for (int i = logStart; i + logFields <= args.length; i += logFields) {
+            if (i > logStart)
+                sb.append("|");
+            sb.append(join(args, i, i + logFields, "~"));
+        }
+        return sb.toString();
+    }
+
+    private static String[] syncFromLegacy(String payload) {
+        List<String> out = new ArrayList<>();
+        out.add("0");
+        if (payload.isEmpty())
+            return out.toArray(new String[0]);
+
+        String[] dbParts = payload.split("#");
+        String accountsData = dbParts[0];
+        String logsData = (dbParts.length > 1) ? dbParts[1] : "";
+
+        int accounts = 0;
+        if (!accountsData.isEmpty()) {
+            for (String accStr : accountsData.split("\\|")) {
+                // Newer rows use ~, very old ones used :
+                String[] parts = accStr.contains("~") ? accStr.split("~") : accStr.split(":");
+                if (parts.length == 8) {
+                    // BACKWARD COMPATIBILITY: old 3-name schema (id:f:s:t:phone:pass:bal:role)
+                    String fullName = (parts[1] + " " + parts[2] + " " + parts[3]).trim();
+                    out.add(parts[0]);
+                    out.add(fullName);
+                    for (int i = 4; i < 8; i++)
+                        out.add(parts[i]);
+                    accounts++;
+                } else if (parts.length >= SYNC_ACCOUNT_FIELDS) {
+                    for (int i = 0; i < SYNC_ACCOUNT_FIELDS; i++)
+                        out.add(parts[i]);
+                    accounts++;
+                }
+            }
+        }
+        out.set(0, syncHeader(accounts));
+
+        if (!logsData.isEmpty()) {
+            for (String logStr : logsData.split("\\|")) {
+                String[] parts = logStr.split("~");
+                if (parts.length >= SYNC_LOG_FIELDS_V1) {
+                    for (int i = 0; i < SYNC_LOG_FIELDS_V1; i++)
+                        out.add(parts[i]);
+                    out.add(parts.length >= SYNC_LOG_FIELDS ? parts[SYNC_LOG_FIELDS_V1] : "0"); // hlc
+                }
+            }
+        }
+        return out.toArray(new String[0]);
+    }
+
+    private static String join(String[] args, int from, int to, String sep) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > from)
+                sb.append(sep);
+            sb.append(args[i]);
+        }
+        return sb.toString();
+    }
+}
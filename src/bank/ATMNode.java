@@ -1,13 +1,26 @@
 package bank;
 
+import algorithm.NodeConfig;
+import algorithm.NodeExecutors;
+import algorithm.PeerMessage;
+import algorithm.ReplicationStreams;
+import algorithm.ReplicationStreams.Durability;
+import algorithm.ReplicationStreams.Outcome;
 import algorithm.RicartNode;
-import java.io.*;
+import algorithm.WireCodec;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * ATMNode - DISTRIBUTED VERSION
@@ -15,7 +28,10 @@ import java.util.concurrent.TimeUnit;
  * Represents an ATM machine in the TRUE distributed system.
  * - Each node has its own local MySQL database
  * - Implements database replication across all peer nodes
- * - Uses 2-Phase Commit for data consistency
+ * - Commits locally, then acknowledges the client once the operation's
+ * durability level is met (repl.durability: local / one / majority)
+ * - Replication records are kept in a durable outbox, so a peer that was
+ * down catches up on exactly what it missed (ReplicationOutbox)
  * - NO dependency on central BankServer (eliminated single point of failure)
  */
 public class ATMNode extends RicartNode {
@@ -30,6 +46,15 @@ public class ATMNode extends RicartNode {
     private String opTarget;
     private volatile String lastTransactionResult = "";
 
+    // Default durability for operations, and the longest a client waits for it
+    private final Durability defaultDurability = Durability.parse(NodeConfig.getString("repl.durability", "local"),
+            Durability.LOCAL);
+    private final long commitTimeoutMs = NodeConfig.getLong("repl.commitTimeoutMs", 2000);
+
+    private ReplicationOutbox outbox; // Created by start()
+
+    private static final long MIN_OPENING_DEPOSIT = 500 * Money.CENTS_PER_UNIT;
+
     /**
      * Constructor for distributed ATM Node
      * 
@@ -60,15 +85,19 @@ public class ATMNode extends RicartNode {
         return localDB;
     }
 
+    public ReplicationOutbox getOutbox() {
+        return outbox;
+    }
+
     /**
      * Check balance from LOCAL database
      */
     public String checkBalance(String user) {
-        double balance = localDB.getBalance(user);
-        if (balance == -1.0) {
+        long balance = localDB.getBalance(user);
+        if (balance == Database.NO_ACCOUNT) {
             return "Error";
         }
-        return String.valueOf(balance);
+        return Money.format(balance);
     }
 
     /**
@@ -88,15 +117,31 @@ public class ATMNode extends RicartNode {
 
         // 2. Query available peer nodes (fault tolerance)
         System.out.println("🔍 ATM " + getNodeId() + ": Account not found locally, querying peers...");
-        Database.Account peerAccount = queryPeersForAccount(user, pass);
-
-        if (peerAccount != null) {
-            // 3. Cache account locally for future logins (performance optimization)
-            System.out.println("✅ ATM " + getNodeId() + ": Found account on peer, caching locally");
-            localDB.createAccountWithHash(user, peerAccount.name, "000", peerAccount.password, peerAccount.balance,
-                    peerAccount.role);
-            // activeSessions.add(user); // Lock session -> REMOVED
-            return "OK:LOGIN_SUCCESS:" + peerAccount.name + ":" + peerAccount.role;
+        int peerId = queryPeersForAccount(user, pass);
+
+        if (peerId >= 0) {
+            // 3. Pull the account in through a sync now rather than creating it from this answer:
+            // the sync records which operations its balance already includes, so they are
+            // not applied a second time when replication delivers them.
+            // Wait for it (bounded) so the session's first operation finds the account.
+            System.out.println("✅ ATM " + getNodeId() + ": Found account on Node " + peerId + ", syncing it in");
+            try {
+                syncFromPeer(peerId).get(loginSyncWaitMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                System.out.println("⏳ ATM " + getNodeId() + ": Sync from Node " + peerId + " still running after "
+                        + loginSyncWaitMs + "ms");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // Not thrown: a sync run always completes normally
+            }
+            if (localDB.authenticate(user, pass)) {
+                Database.Account acc = localDB.getAccount(user);
+                // activeSessions.add(user); // Lock session -> REMOVED
+                return "OK:LOGIN_SUCCESS:" + acc.name + ":" + acc.role;
+            }
+            // Not here yet: the client retries; the running sync or replication brings it in
+            return "FAIL:ACCOUNT_SYNCING";
         }
 
         // 4. Not found anywhere
@@ -108,10 +153,10 @@ public class ATMNode extends RicartNode {
      */
     public String register(String user, String fullName, String phone, String pass, String amount) {
         try {
-            double initialBalance = Double.parseDouble(amount);
+            long initialBalance = Money.parse(amount);
 
             // Validation
-            if (initialBalance < 500) {
+            if (initialBalance < MIN_OPENING_DEPOSIT) {
                 return "FAIL:MIN_DEPOSIT_500";
             }
 
@@ -128,24 +173,28 @@ public class ATMNode extends RicartNode {
                 return "FAIL:EXISTS";
             }
 
-            // Create account in LOCAL database first
-            String result = localDB.createAccountExtended(user, fullName, phone, pass, initialBalance, "user");
+            // IMPORTANT: Replicate the HASHED password, not plain text
+            String passHash = PasswordUtils.hash(pass);
+            // REPLICATE_CREATE: userId, fullName, phone, passHash, balance, role
+            PeerMessage replication = new PeerMessage(PeerMessage.REPLICATE_CREATE, 0, getNodeId(),
+                    user, fullName, phone, passHash, Money.format(initialBalance), "user");
 
-            if ("OK".equals(result)) {
+            // Create account in LOCAL database, committed with its outbox record
+            long outboxTicket = outbox.reserve();
+            try {
+                Database.RecordedWrite write = localDB.registerAccount(user, fullName, phone, passHash,
+                        initialBalance, "user", WireCodec.encode(replication));
+                if (!write.ok())
+                    return write.status;
                 // REPLICATE to all peer nodes
-                // IMPORTANT: Broadcast the HASHED password, not plain text
-                String passHash = PasswordUtils.hash(pass);
-                // New Format: REPLICATE_CREATE:userId:fullName:phone:passHash:balance:role
-                String replicationMsg = "REPLICATE_CREATE:" + user + ":" + fullName + ":" + phone + ":" + passHash + ":"
-                        + initialBalance + ":user";
-                broadcastReplication(replicationMsg);
-
-                System.out.println("✅ ATM " + getNodeId() + ": Account created and replicated to all peers");
-                return "OK:CREATED";
-            } else {
-                return result;
+                broadcastReplication(write.outboxId, replication);
+            } finally {
+                outbox.release(outboxTicket);
             }
 
+            System.out.println("✅ ATM " + getNodeId() + ": Account created and replicated to all peers");
+            return "OK:CREATED";
+
         } catch (NumberFormatException e) {
             return "FAIL:INVALID_AMOUNT";
         }
@@ -163,194 +212,150 @@ public class ATMNode extends RicartNode {
      */
 
     /**
-     * Broadcast replication message to all peer nodes
+     * Broadcast replication message to all peer nodes.
+     * Only queues it on each peer's ordered replication stream: the critical
+     * section is done as soon as the local commit is, whatever the peers'
+     * speed. A peer that is down gets it from the outbox when it is back.
+     *
+     * @param outboxId - the message's replication_outbox row, committed with
+     *                 the change it describes
+     * @return one future per peer, true once that peer has applied the message
      */
-    private void broadcastReplication(String message) {
-        System.out.println("📡 ATM " + getNodeId() + ": Broadcasting replication: " + message);
-
-        for (int peerId : getAllNodes().keySet()) {
-            // Changed: Don't skip myself if I want to replicate to myself (though usually
-            // we optimize)
-            // But logic says "if (peerId != getNodeId())"
-            if (peerId != getNodeId()) {
-                sendReplicationMessage(peerId, message);
-            }
-        }
+    private List<CompletableFuture<Boolean>> broadcastReplication(long outboxId, PeerMessage message) {
+        System.out.println("📡 ATM " + getNodeId() + ": Queuing replication #" + outboxId + ": " + message);
+        return outbox.publish(outboxId, message);
     }
 
     /**
      * Query peer nodes for account information
      * Phase 1: Fault-Tolerant Login
+     *
+     * @return id of the first peer that has the account, or -1
      */
-    private Database.Account queryPeersForAccount(String userId, String password) {
+    private int queryPeersForAccount(String userId, String password) {
+        PeerMessage query = new PeerMessage(PeerMessage.QUERY_ACCOUNT, 0, getNodeId(), userId, password);
         for (int peerId : getAllNodes().keySet()) {
-            if (peerId == getNodeId())
+            if (peerId == getNodeId() || !isPeerAvailable(peerId))
                 continue;
 
-            try {
-                String response = sendQueryToPeer(peerId, "QUERY_ACCOUNT:" + userId + ":" + password);
-
-                if (response != null && response.startsWith("ACCOUNT_FOUND:")) {
-                    // Parse: ACCOUNT_FOUND:name:balance:role
-                    String[] parts = response.split(":", 5);
-                    if (parts.length >= 5) {
-                        String name = parts[1];
-                        double balance = Double.parseDouble(parts[2]);
-                        String role = parts[3];
-                        // Cache other fields if present (from updated peers)
-                        System.out.println("  ✅ Found account on Node " + peerId);
-                        return new Database.Account(userId, name, password, balance, role);
-                    }
-                }
-            } catch (Exception e) {
+            // 0.5 second read timeout
+            PeerMessage response = queryPeer(peerId, query, 500);
+            if (response == null) {
                 // Peer is offline or error occurred, try next peer
                 System.out.println("  ⚠️  Node " + peerId + " is offline or unreachable");
                 continue;
             }
-        }
-        return null; // Not found on any peer
-    }
-
-    /**
-     * Send query to a specific peer and wait for response
-     * Phase 1: Fault-Tolerant Login
-     */
-    private String sendQueryToPeer(int targetNodeId, String query) {
-        InetSocketAddress targetAddress = getAllNodes().get(targetNodeId);
-        if (targetAddress == null)
-            return null;
-
-        try {
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(targetAddress.getAddress(), targetAddress.getPort()), 500); // 500ms
-                                                                                                             // Connect
-                                                                                                             // Timeout
-
-            try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-                out.println(query);
-
-                // Wait for response with timeout
-                socket.setSoTimeout(500); // 0.5 second Read timeout
-                String response = in.readLine();
-                socket.close(); // Explicit close
-                return response;
-            }
-        } catch (IOException e) {
-            // Inner catch handles it, or we bubble up.
-            // Actually, let's just have one catch block.
-            // logic above was: try { socket code } catch(IO) { } catch(IO) { }
-            // The outer catch was failing.
-            // Let's just catch it once.
-            // Peer is offline or error occurred
-            System.out.println("  ⚠️  Node " + targetNodeId + " is offline or unreachable");
-            return null; // Return null as before
-        }
-        // Removed the extra catch block below via this replacement
-        // return null; // Logic flow handles this
-
-    }
-
-    /**
-     * Send replication message to a specific peer
-     */
-    private void sendReplicationMessage(int targetNodeId, String message) {
-        InetSocketAddress targetAddress = getAllNodes().get(targetNodeId);
-        if (targetAddress == null)
-            return;
 
-        try {
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(targetAddress.getAddress(), targetAddress.getPort()), 500); // 500ms
-                                                                                                             // Connect
-                                                                                                             // Timeout
-
-            try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                out.println(message);
-                System.out.println("  ↳ Sent to Node " + targetNodeId);
+            // ACCOUNT_RESPONSE: ACCOUNT_FOUND, name, balance, role
+            if (response.type == PeerMessage.ACCOUNT_RESPONSE && response.argCount() >= 4
+                    && "ACCOUNT_FOUND".equals(response.arg(0))) {
+                System.out.println("  ✅ Found account on Node " + peerId);
+                return peerId;
             }
-            socket.close();
-        } catch (IOException e) {
-            System.err.println("  ✗ Failed to replicate to Node " + targetNodeId + ": " + e.getMessage());
-            System.err.println("  (Node may be offline - this is OK in distributed systems)");
         }
-        // Removing the extra catch block
-
+        return -1; // Not found on any peer
     }
 
     /**
      * Handle incoming replication messages from peers
      * This is called by RicartNode when it receives a replication message
+     *
+     * @return APPLIED once the message is applied (or there is nothing to
+     *         apply); RETRY if it has to be retried, e.g. its account isn't
+     *         here yet or the DB is down; REJECTED if it never can be
+     *         (malformed, or bad data the DB refuses)
      */
-    public void handleReplicationMessage(String message) {
+    public Outcome handleReplicationMessage(PeerMessage message) {
         System.out.println("📥 ATM " + getNodeId() + ": Received replication: " + message);
 
-        String[] parts = message.split(":");
-        if (parts.length < 2) {
-            System.err.println("  ⚠️ ATM " + getNodeId() + ": Malformed replication message: " + message);
-            return;
-        }
-        String action = parts[0];
-
         try {
-            if ("REPLICATE_CREATE".equals(action)) {
-                // New Format: REPLICATE_CREATE:userId:fullName:phone:password:balance:role
-                if (parts.length >= 7) {
-                    String userId = parts[1];
-                    String fullName = parts[2];
-                    String phone = parts[3];
-                    String password = parts[4];
-                    double balance = Double.parseDouble(parts[5]);
-                    String role = parts.length > 6 ? parts[6] : "user";
+            if (message.type == PeerMessage.REPLICATE_CREATE) {
+                // REPLICATE_CREATE: userId, fullName, phone, password, balance, role
+                if (message.argCount() >= 5) {
+                    String userId = message.arg(0);
+                    String fullName = message.arg(1);
+                    String phone = message.arg(2);
+                    String password = message.arg(3);
+                    long balance = Money.parse(message.arg(4));
+                    String role = message.arg(5, "user");
 
                     if (!localDB.accountExists(userId)) {
                         // Use createAccountWithHash because peer sends already hashed password
-                        localDB.createAccountWithHash(userId, fullName, phone, password, balance, role);
+                        String result = localDB.createAccountWithHashExtended(userId, fullName, phone, password,
+                                balance, role);
+                        if (result.startsWith("FAIL:INVALID_DATA"))
+                            return Outcome.REJECTED;
+                        if (!"OK".equals(result)) // Lost a race with sync: fine
+                            return localDB.accountExists(userId) ? Outcome.APPLIED : Outcome.RETRY;
                         System.out.println("  ✅ Replicated account creation: " + userId + " (Role: " + role + ")");
                     }
                 }
-            } else if ("REPLICATE_PASSWORD_UPDATE".equals(action)) {
-                // REPLICATE_PASSWORD_UPDATE:userId:newPasswordHash
-                String userId = parts[1];
-                String newPassHash = parts[2];
-                if (localDB.accountExists(userId)) {
-                    localDB.updatePasswordWithHash(userId, newPassHash);
-                    System.out.println("  ✅ Replicated password update: " + userId);
+            } else if (message.type == PeerMessage.REPLICATE_PASSWORD_UPDATE) {
+                // REPLICATE_PASSWORD_UPDATE: userId, newPasswordHash
+                String userId = message.arg(0);
+                String newPassHash = message.arg(1);
+                if (!localDB.accountExists(userId))
+                    return Outcome.RETRY; // Retried until the account arrives
+                Outcome written = outcome(localDB.updatePasswordWithHash(userId, newPassHash));
+                if (written != Outcome.APPLIED)
+                    return written;
+                System.out.println("  ✅ Replicated password update: " + userId);
+            } else if (message.type == PeerMessage.REPLICATE_OP) {
+                // REPLICATE_OP: timestamp, type, userId, amount, targetId, nodeId, lamport, hlc.
+                // Every balance leg plus the ledger row, applied in one local transaction.
+                // Idempotent and order-independent: duplicates and replays are no-ops.
+                if (message.argCount() >= 8) {
+                    long hlc = Long.parseLong(message.arg(7));
+                    observeHlc(hlc);
+                    // Negative: an account is missing or the write failed, nothing applied
+                    return outcome(localDB.applyOperation(message.arg(0), message.arg(1), message.arg(2),
+                            Money.parse(message.arg(3)), message.arg(4), Integer.parseInt(message.arg(5)),
+                            Integer.parseInt(message.arg(6)), hlc));
                 }
-            } else if ("REPLICATE_UPDATE".equals(action)) {
-                // REPLICATE_UPDATE:userId:newBalance
-                String userId = parts[1];
-                double newBalance = Double.parseDouble(parts[2]);
+            } else if (message.type == PeerMessage.REPLICATE_UPDATE) {
+                // REPLICATE_UPDATE: userId, newBalance (absolute; older nodes only)
+                String userId = message.arg(0);
+                long newBalance = Money.parse(message.arg(1));
 
                 // Update balance in local database
-                if (localDB.accountExists(userId)) {
-                    localDB.updateBalance(userId, newBalance);
-                    System.out.println("  ✅ Replicated balance update: " + userId + " -> $" + newBalance);
-                } else {
+                if (!localDB.accountExists(userId)) {
                     System.out.println("  ⚠️  Cannot update non-existent account: " + userId);
+                    return Outcome.RETRY;
                 }
-            } else if ("REPLICATE_LOG".equals(action)) {
-                // Format: REPLICATE_LOG:timestamp~type~userId~amount~targetId~nodeId~lamport
-                if (parts.length >= 2) {
-                    String logPayload = parts[1];
-                    String[] logParts = logPayload.split("~");
-                    if (logParts.length >= 7) {
-                        localDB.importTransaction(
-                                logParts[0], // timestamp
-                                logParts[1], // type
-                                logParts[2], // userId
-                                logParts[3], // amount
-                                logParts[4], // targetId
-                                Integer.parseInt(logParts[5]), // nodeId
-                                Integer.parseInt(logParts[6]) // lamport
-                        );
-                    }
+                // Any cent amount fits the column, so a failure here is a passing one
+                if (!localDB.updateBalance(userId, newBalance))
+                    return Outcome.RETRY;
+                System.out.println("  ✅ Replicated balance update: " + userId + " -> $" + Money.format(newBalance));
+            } else if (message.type == PeerMessage.REPLICATE_LOG) {
+                // REPLICATE_LOG: timestamp, type, userId, amount, targetId, nodeId, lamport[, hlc]
+                if (message.argCount() >= 7) {
+                    long hlc = Long.parseLong(message.arg(7, "0"));
+                    if (hlc > 0)
+                        observeHlc(hlc);
+                    return outcome(localDB.importTransaction(
+                            message.arg(0), // timestamp
+                            message.arg(1), // type
+                            message.arg(2), // userId
+                            Money.parse(message.arg(3)), // amount
+                            message.arg(4), // targetId
+                            Integer.parseInt(message.arg(5)), // nodeId
+                            Integer.parseInt(message.arg(6)), // lamport
+                            hlc));
                 }
             }
-        } catch (Exception e) {
-            System.err.println("  ✗ Error processing replication: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // Unparseable fields: resending the same message can't fix it
+            System.err.println("  ✗ Malformed replication message: " + e.getMessage());
+            return Outcome.REJECTED;
         }
+        return Outcome.APPLIED;
+    }
+
+    // Database result code -> replication outcome
+    private static Outcome outcome(int result) {
+        if (result >= 0)
+            return Outcome.APPLIED;
+        return (result == Database.REJECTED) ? Outcome.REJECTED : Outcome.RETRY;
     }
 
     public String getLastTransactionResult() {
@@ -365,13 +370,35 @@ public class ATMNode extends RicartNode {
     }
 
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // Per-peer sync workers (virtual threads when exec.mode=virtual)
+    private ExecutorService syncWorkers;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Void>> syncRuns = new ConcurrentHashMap<>(); // In flight
+    private final long loginSyncWaitMs = NodeConfig.getLong("login.syncWaitMs", 3000);
 
     @Override
     public void start() {
+        // Created here rather than in the constructor, which must not hand out this node.
+        // Before super.start(): REPLYs sent by the listener already wait on the outbox.
+        outbox = new ReplicationOutbox(localDB, getNodeId(), getAllNodes().keySet(), this::replicate,
+                this::isPeerAvailable, NodeConfig.getInt("repl.replayBatch", 500),
+                NodeConfig.getLong("repl.replayMinBackoffMs", 200), NodeConfig.getLong("repl.replayMaxBackoffMs", 30000),
+                NodeConfig.getLong("repl.outboxMaxRows", 1_000_000));
         super.start();
-        // Trigger periodic sync with peers every 5 seconds
-        // Initial delay 0, repeat every 5 seconds
-        scheduler.scheduleAtFixedRate(this::syncWithPeers, 0, 5, TimeUnit.SECONDS);
+        syncWorkers = NodeExecutors.newTaskExecutor("Node-" + getNodeId() + "-Sync", getAllNodes().size());
+        // Full-state sync is the safety net (peers catch up from the outbox);
+        // initial delay 0, repeat every sync.intervalMs
+        long syncIntervalMs = NodeConfig.getLong("sync.intervalMs", 5000);
+        scheduler.scheduleAtFixedRate(this::syncWithPeers, 0, syncIntervalMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::replayOutbox, ReplicationOutbox.TICK_MS, ReplicationOutbox.TICK_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void replayOutbox() {
+        try {
+            outbox.tick();
+        } catch (RuntimeException e) {
+            System.err.println("⚠️ ATM " + getNodeId() + ": outbox replay error: " + e.getMessage());
+        }
     }
 
     /**
@@ -384,51 +411,53 @@ public class ATMNode extends RicartNode {
         // Simple strategy: Ask ALL peers, merge everything.
         // In a real system, you might ask just one or use a Merkle tree.
         for (int peerId : getAllNodes().keySet()) {
-            if (peerId == getNodeId())
+            // Dead peers are probed by the heartbeat loop, not by a full sync
+            if (peerId == getNodeId() || !isPeerAvailable(peerId))
                 continue;
 
+            syncFromPeer(peerId);
+        }
+    }
+
+    /**
+     * Start a sync from one peer, or join the one already running.
+     * One worker per peer, so a slow dump from one peer doesn't hold up the others.
+     *
+     * @return completes (never exceptionally) when the sync is done or has failed
+     */
+    private CompletableFuture<Void> syncFromPeer(int peerId) {
+        CompletableFuture<Void> run = new CompletableFuture<>();
+        CompletableFuture<Void> running = syncRuns.putIfAbsent(peerId, run);
+        if (running != null)
+            return running;
+
+        syncWorkers.execute(() -> {
             try {
-                // We manually send a socket message because RicartNode.sendMessage is for
-                // protocol messages
-                // and we want a request-response flow here.
-                // Actually, let's just use a socket directly like queryPeersForAccount
                 sendSyncRequestToPeer(peerId);
             } catch (Exception e) {
                 System.out.println("  ⚠️  Sync: Peer " + peerId + " unreachable.");
+            } finally {
+                syncRuns.remove(peerId, run);
+                run.complete(null);
             }
-        }
+        });
+        return run;
     }
 
     private void sendSyncRequestToPeer(int targetNodeId) {
-        InetSocketAddress targetAddress = getAllNodes().get(targetNodeId);
-        if (targetAddress == null)
-            return;
+        System.out.println("  -> Sending SYNC_REQUEST to Node " + targetNodeId);
 
-        try {
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(targetAddress.getAddress(), targetAddress.getPort()), 500); // 500ms
-                                                                                                             // Connect
-                                                                                                             // Timeout
-
-            try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-
-                System.out.println("  -> Sending SYNC_REQUEST to Node " + targetNodeId);
-                out.println("SYNC_REQUEST");
-
-                // Read response (could be large)
-                String response = in.readLine();
-                if (response != null && response.startsWith("SYNC_RESPONSE:")) {
-                    handleReplicationMessage(response); // Reuse handler or call onSyncResponse
-                    onSyncResponse(response);
-                }
-            }
-            socket.close();
-        } catch (IOException e) {
+        // Response could be large, so no read timeout
+        PeerMessage response = queryPeer(targetNodeId, new PeerMessage(PeerMessage.SYNC_REQUEST, 0, getNodeId()), 0);
+        if (response == null) {
             // Peer offline
             System.out.println("  ⚠️  Sync: Peer " + targetNodeId + " unreachable.");
+        } else if (response.type == PeerMessage.BUSY) {
+            // Peer shed the dump under load; the next periodic round retries
+            System.out.println("  ⏳ Sync: Peer " + targetNodeId + " busy, retrying next round.");
+        } else if (response.type == PeerMessage.SYNC_RESPONSE) {
+            onSyncResponse(response);
         }
-        // Removing extra catch block
     }
 
     // ==========================================
@@ -436,94 +465,106 @@ public class ATMNode extends RicartNode {
     // ==========================================
 
     @Override
-    protected String onAccountQuery(String userId, String password) {
+    protected PeerMessage onAccountQuery(String userId, String password) {
         if (localDB.authenticate(userId, password)) {
             Database.Account acc = localDB.getAccount(userId);
-            return "ACCOUNT_FOUND:" + acc.name + ":" + acc.balance + ":" + acc.role;
+            return new PeerMessage(PeerMessage.ACCOUNT_RESPONSE, 0, getNodeId(),
+                    "ACCOUNT_FOUND", acc.name, Money.format(acc.balance), acc.role);
         }
-        return "ACCOUNT_NOT_FOUND";
+        return new PeerMessage(PeerMessage.ACCOUNT_RESPONSE, 0, getNodeId(), "ACCOUNT_NOT_FOUND");
     }
 
     @Override
-    protected void onSyncRequest(PrintWriter out) {
-        String accounts = localDB.getAllAccountsSerialized();
-        java.util.List<Database.Transaction> myLogs = localDB.getAllTransactions();
-        StringBuilder logsSb = new StringBuilder();
-        for (int i = 0; i < myLogs.size(); i++) {
-            Database.Transaction t = myLogs.get(i);
-            if (i > 0)
-                logsSb.append("|");
-            // timestamp~type~user~amount~target~node~clock
-            logsSb.append(t.timestamp).append("~")
-                    .append(t.type).append("~")
-                    .append(t.userId).append("~")
-                    .append(t.amount).append("~")
-                    .append(t.targetId).append("~")
-                    .append(t.nodeId).append("~")
-                    .append(t.lamportClock);
+    protected PeerMessage onSyncRequest() {
+        // Balances and ledger from one consistent read
+        Database.SyncSnapshot snapshot = localDB.readSyncSnapshot();
+        java.util.List<Database.Account> accounts = snapshot.accounts;
+        java.util.List<Database.Transaction> myLogs = snapshot.transactions;
+
+        // SYNC_RESPONSE: accountCount, then id/name/phone/pass/balance/role per account,
+        // then timestamp/type/user/amount/target/node/clock/hlc per transaction
+        java.util.List<String> args = new java.util.ArrayList<>(
+                1 + accounts.size() * WireCodec.SYNC_ACCOUNT_FIELDS + myLogs.size() * WireCodec.SYNC_LOG_FIELDS);
+        args.add(WireCodec.syncHeader(accounts.size()));
+        for (Database.Account acc : accounts) {
+            args.add(acc.id);
+            args.add(acc.name);
+            args.add(acc.phoneNumber);
+            args.add(acc.password);
+            args.add(Money.format(acc.balance));
+            args.add(acc.role);
+        }
+        for (Database.Transaction t : myLogs) {
+            args.add(t.timestamp);
+            args.add(t.type);
+            args.add(t.userId);
+            args.add(Money.format(t.amount));
+            args.add(t.targetId);
+            args.add(String.valueOf(t.nodeId));
+            args.add(String.valueOf(t.lamportClock));
+            args.add(String.valueOf(t.hlc));
         }
 
-        // Combined Format: SYNC_RESPONSE:accountsData#transactionsData
-        out.println("SYNC_RESPONSE:" + accounts + "#" + logsSb.toString());
         System.out.println("📤 ATM " + getNodeId() + ": Sent full DB dump (Accounts + Logs) to peer.");
+        return new PeerMessage(PeerMessage.SYNC_RESPONSE, 0, getNodeId(), args.toArray(new String[0]));
     }
 
     @Override
-    protected void onSyncResponse(String message) {
-        // Message Type: SYNC_RESPONSE:accounts#transactions
-        String payload = message.substring("SYNC_RESPONSE:".length());
-        if (payload.isEmpty())
+    protected void onSyncResponse(PeerMessage message) {
+        if (message.argCount() == 0)
             return;
 
-        String[] dbParts = payload.split("#");
-        String accountsData = dbParts[0];
-        String logsData = (dbParts.length > 1) ? dbParts[1] : "";
+        int accountRows = WireCodec.syncAccountCount(message.arg(0));
+        int logFields = WireCodec.syncLogFields(message.arg(0));
+        int logStart = 1 + accountRows * WireCodec.SYNC_ACCOUNT_FIELDS;
 
-        // 1. Sync Accounts
+        // Parse the ledger first: a new account's balance already includes these operations
+        java.util.List<Database.Transaction> peerLogs = new java.util.ArrayList<>();
+        for (int i = logStart; i + logFields <= message.argCount(); i += logFields) {
+            try {
+                long hlc = (logFields >= WireCodec.SYNC_LOG_FIELDS) ? Long.parseLong(message.arg(i + 7)) : 0;
+                peerLogs.add(new Database.Transaction(0, message.arg(i), message.arg(i + 1), message.arg(i + 2),
+                        Money.parse(message.arg(i + 3)), message.arg(i + 4), Integer.parseInt(message.arg(i + 5)),
+                        Integer.parseInt(message.arg(i + 6)), hlc));
+            } catch (Exception e) {
+                // skip
+            }
+        }
+
+        // 1. Sync Accounts (id, name, phone, pass, balance, role). Existing balances are
+        // never overwritten; they only move through operations.
         int accountCount = 0;
-        if (!accountsData.isEmpty()) {
-            String[] accounts = accountsData.split("\\|");
-            for (String accStr : accounts) {
-                // Try splitting with newer ~ delimiter first, then fallback to :
-                String[] parts = accStr.contains("~") ? accStr.split("~") : accStr.split(":");
-
-                try {
-                    if (parts.length == 8) {
-                        // BACKWARD COMPATIBILITY: Handle old 3-name schema
-                        // (id:f:s:t:phone:pass:bal:role)
-                        String fullName = (parts[1] + " " + parts[2] + " " + parts[3]).trim();
-                        localDB.upsertAccount(parts[0], fullName, parts[4], parts[5],
-                                Double.parseDouble(parts[6]), parts[7]);
-                        accountCount++;
-                    } else if (parts.length >= 6) {
-                        // Standard NEW schema (id:name:phone:pass:bal:role)
-                        localDB.upsertAccount(parts[0], parts[1], parts[2], parts[3],
-                                Double.parseDouble(parts[4]), parts[5]);
-                        accountCount++;
-                    }
-                } catch (Exception e) {
-                    System.err.println("  ⚠️ Skipping malformed account data: " + accStr + " (" + e.getMessage() + ")");
-                }
+        int accountEnd = Math.min(logStart, message.argCount());
+        for (int i = 1; i + WireCodec.SYNC_ACCOUNT_FIELDS <= accountEnd; i += WireCodec.SYNC_ACCOUNT_FIELDS) {
+            try {
+                localDB.upsertAccount(message.arg(i), message.arg(i + 1), message.arg(i + 2), message.arg(i + 3),
+                        Money.parse(message.arg(i + 4)), message.arg(i + 5), peerLogs);
+                accountCount++;
+            } catch (Exception e) {
+                System.err.println(
+                        "  ⚠️ Skipping malformed account data: " + message.arg(i) + " (" + e.getMessage() + ")");
             }
         }
 
-        // 2. Sync Transactions
+        // 2. Sync Transactions. Stamped rows are operations: any leg this node missed is
+        // applied now, exactly once. Unstamped (pre-HLC) rows are ledger-only.
         int logCount = 0;
-        if (!logsData.isEmpty()) {
-            String[] logs = logsData.split("\\|");
-            for (String logStr : logs) {
-                String[] parts = logStr.split("~");
-                if (parts.length >= 7) {
-                    try {
-                        localDB.importTransaction(parts[0], parts[1], parts[2], parts[3],
-                                parts[4], Integer.parseInt(parts[5]), Integer.parseInt(parts[6]));
-                        logCount++;
-                    } catch (Exception e) {
-                        // skip
-                    }
+        for (Database.Transaction t : peerLogs) {
+            try {
+                if (t.hlc > 0) {
+                    observeHlc(t.hlc);
+                } else {
+                    localDB.importTransaction(t.timestamp, t.type, t.userId, t.amount, t.targetId, t.nodeId,
+                            t.lamportClock, 0);
                 }
+                logCount++;
+            } catch (Exception e) {
+                // skip
             }
         }
+        int legsApplied = localDB.applyOperations(peerLogs);
+        if (legsApplied > 0)
+            System.out.println("📥 ATM " + getNodeId() + ": Sync applied " + legsApplied + " missed operation leg(s).");
         System.out.println("📥 ATM " + getNodeId() + ": Synced " + accountCount + " accounts and " + logCount
                 + " transactions from peer.");
     }
@@ -542,12 +583,21 @@ public class ATMNode extends RicartNode {
         return "SESSION_INACTIVE"; // Always allow
     }
 
+    /**
+     * Our writes reach peers through the outbox (stream or replay), so a
+     * REPLY waits for the peer's outbox cursor.
+     */
+    @Override
+    protected CompletableFuture<?> replicationBarrier(int peerId) {
+        return outbox.caughtUp(peerId);
+    }
+
     /**
      * Override to handle replication messages from RicartNode
      */
     @Override
-    protected void onReplicationMessage(String message) {
-        handleReplicationMessage(message);
+    protected Outcome onReplicationMessage(PeerMessage message) {
+        return handleReplicationMessage(message);
     }
 
     /**
@@ -560,136 +610,232 @@ public class ATMNode extends RicartNode {
     }
 
     /**
-     * CRITICAL SECTION: Perform the actual banking operation safely
-     * This is guaranteed to run on only ONE node at a time (or sequential)
-     * thanks to Ricart-Agrawala.
+     * Build a REPLICATE_OP record: timestamp, type, user, amount, target, node, clock, hlc.
+     * One envelope per committed operation: it carries every balance change (both
+     * sides of a transfer) and the ledger entry. (node, hlc) is the operation id;
+     * peers apply the deltas once per account.
+     */
+    private PeerMessage replicationOp(String ts, String type, String user, long amount, String target,
+            int timestamp, long hlc) {
+        return new PeerMessage(PeerMessage.REPLICATE_OP, timestamp, getNodeId(),
+                ts, type, user, Money.format(amount), target, String.valueOf(getNodeId()), String.valueOf(timestamp),
+                String.valueOf(hlc));
+    }
+
+    /**
+     * Run one banking operation under the distributed lock on the user's
+     * account and return its result. Safe to call from many threads at once:
+     * operations on different accounts proceed in parallel.
+     * Returns "FAIL:LOCK_TIMEOUT" (nothing written) if the lock could not be
+     * obtained in time.
+     */
+    public String executeOperation(String op, String user, String amount, String target) {
+        long cents = parseAmount(amount);
+        if (cents <= 0)
+            return "FAIL:INVALID_AMOUNT";
+        return executeOperation(op, user, cents, target, defaultDurability);
+    }
+
+    /**
+     * executeOperation with an explicit durability level. The wait for peer
+     * acks happens after the lock is released, and is bounded by
+     * repl.commitTimeoutMs.
      */
+    public String executeOperation(String op, String user, long amount, String target, Durability durability) {
+        String[] result = { "" };
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+        LockResult lock = requestAccess(operationResources(op, user, target),
+                timestamp -> result[0] = performOperation(op, user, amount, target, timestamp, acks));
+        String outcome = operationResult(op, user, lock, result[0]);
+        return awaitDurability(outcome, acks, durability).join();
+    }
+
+    /**
+     * Non-blocking executeOperation: no thread waits while the lock round is
+     * in flight. The future completes with the same result string.
+     */
+    public CompletableFuture<String> executeOperationAsync(String op, String user, String amount, String target) {
+        long cents = parseAmount(amount);
+        if (cents <= 0)
+            return CompletableFuture.completedFuture("FAIL:INVALID_AMOUNT");
+        return executeOperationAsync(op, user, cents, target, defaultDurability);
+    }
+
+    /**
+     * @param amount - cents, already parsed (see Money)
+     */
+    public CompletableFuture<String> executeOperationAsync(String op, String user, long amount, String target) {
+        return executeOperationAsync(op, user, amount, target, defaultDurability);
+    }
+
+    public CompletableFuture<String> executeOperationAsync(String op, String user, long amount, String target,
+            Durability durability) {
+        String[] result = { "" };
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+        return requestAccessAsync(operationResources(op, user, target),
+                timestamp -> result[0] = performOperation(op, user, amount, target, timestamp, acks))
+                .thenCompose(lock -> awaitDurability(operationResult(op, user, lock, result[0]), acks, durability));
+    }
+
+    /**
+     * Completes with the operation's result once enough peers have applied
+     * it. The operation is already committed here and keeps replicating, so
+     * if the level isn't met within repl.commitTimeoutMs the result stays OK
+     * and is marked ":DURABILITY=PENDING" (retrying would apply it twice).
+     */
+    private CompletableFuture<String> awaitDurability(String result, List<CompletableFuture<Boolean>> acks,
+            Durability durability) {
+        int needed = getReplication().acksNeeded(durability);
+        if (needed == 0 || !result.startsWith("OK"))
+            return CompletableFuture.completedFuture(result);
+        return ReplicationStreams.quorum(acks, needed)
+                .completeOnTimeout(false, commitTimeoutMs, TimeUnit.MILLISECONDS)
+                .thenApply(durable -> {
+                    if (durable)
+                        return result;
+                    System.err.println("⚠️ ATM " + getNodeId() + ": " + durability + " durability not reached in "
+                            + commitTimeoutMs + "ms, replication continues: " + result);
+                    return result + ":DURABILITY=PENDING";
+                });
+    }
+
+    public CompletableFuture<String> depositAsync(String user, String amount) {
+        return executeOperationAsync("DEPOSIT", user, amount, "");
+    }
+
+    public CompletableFuture<String> withdrawAsync(String user, String amount) {
+        return executeOperationAsync("WITHDRAW", user, amount, "");
+    }
 
+    public CompletableFuture<String> transferAsync(String user, String amount, String target) {
+        return executeOperationAsync("TRANSFER", user, amount, target);
+    }
+
+    // Cents, or 0 (rejected as FAIL:INVALID_AMOUNT) if the text is not an amount
+    private static long parseAmount(String amount) {
+        try {
+            return Money.parse(amount);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // A transfer writes both accounts: lock both in one round
+    private static List<String> operationResources(String op, String user, String target) {
+        if ("TRANSFER".equals(op) && target != null && !target.isEmpty() && !target.equals(user))
+            return Arrays.asList(user, target);
+        return Collections.singletonList(user);
+    }
+
+    private String operationResult(String op, String user, LockResult lock, String result) {
+        if (lock == LockResult.TIMED_OUT) {
+            System.err.println("⏱️ " + op + " for " + user + " not executed: distributed lock timed out");
+            return "FAIL:LOCK_TIMEOUT";
+        }
+        return result;
+    }
+
+    /**
+     * CRITICAL SECTION for setOperationDetails + requestAccess callers.
+     */
     @Override
     protected void onCriticalSection(int timestamp) {
-        System.out.println("⚡ [v2.0-FLOAT] CRITICAL SECTION ENTERED by " + getNodeId() + " for " + nextOperation);
+        // Legacy path: local durability (the result is read straight after the CS)
+        lastTransactionResult = performOperation(nextOperation, opUser, parseAmount(opAmount), opTarget, timestamp,
+                new ArrayList<>());
+    }
+
+    /**
+     * CRITICAL SECTION: Perform the actual banking operation safely
+     * This is guaranteed to run on only ONE node at a time (or sequential)
+     * thanks to Ricart-Agrawala.
+     */
+    private String performOperation(String op, String user, long amount, String target, int timestamp,
+            List<CompletableFuture<Boolean>> acks) {
+        System.out.println("⚡ [v2.0] CRITICAL SECTION ENTERED by " + getNodeId() + " for " + op);
 
+        String result = "";
+        // Holds back peer cursors until this operation's outbox record is published
+        long outboxTicket = outbox.reserve();
         try {
             // 1. DEPOSIT
-            if ("DEPOSIT".equals(nextOperation)) {
-                double amountObj = Double.parseDouble(opAmount);
-                if (amountObj <= 0) {
-                    lastTransactionResult = "FAIL:INVALID_AMOUNT";
-                    return;
+            if ("DEPOSIT".equals(op)) {
+                if (amount <= 0) {
+                    return "FAIL:INVALID_AMOUNT";
                 }
 
-                double currentBalance = localDB.getBalance(opUser);
-                if (currentBalance != -1.0) {
-                    double newBalance = currentBalance + amountObj;
-                    localDB.updateBalance(opUser, newBalance);
-
-                    // Broadcast replication
-                    broadcastReplication("REPLICATE_UPDATE:" + opUser + ":" + newBalance);
-
-                    // LOG TRANSACTION WITH TIMESTAMP
-                    String ts = localDB.logTransaction("DEPOSIT", opUser, opAmount, null, timestamp);
-                    if (ts != null) {
-                        // REPLICATE LOG: timestamp~type~user~amt~target~node~clock
-                        broadcastReplication("REPLICATE_LOG:" + ts + "~DEPOSIT~" + opUser + "~" + opAmount + "~null~"
-                                + getNodeId() + "~" + timestamp);
-                    }
-
-                    lastTransactionResult = "OK:DEPOSIT_SUCCESS:NewBalance=" + newBalance;
-                    System.out.println("✅ ATM " + getNodeId() + ": Deposited $" + amountObj + " to " + opUser);
+                // Balance delta + ledger row in one DB transaction
+                long hlc = nextHlc();
+                Database.BalanceChange change = localDB.deposit(user, amount, timestamp, hlc,
+                        ts -> WireCodec.encode(replicationOp(ts, "DEPOSIT", user, amount, "null", timestamp, hlc)));
+                if (change.ok()) {
+                    // Broadcast the operation: timestamp, type, user, amt, target, node, clock, hlc
+                    acks.addAll(broadcastReplication(change.outboxId,
+                            replicationOp(change.timestamp, "DEPOSIT", user, amount, "null", timestamp, hlc)));
+
+                    result = "OK:DEPOSIT_SUCCESS:NewBalance=" + Money.format(change.newBalance);
+                    System.out.println("✅ ATM " + getNodeId() + ": Deposited $" + Money.format(amount) + " to " + user);
                 } else {
-                    lastTransactionResult = "FAIL:USER_NOT_FOUND";
+                    result = change.status;
                 }
             }
 
             // 2. WITHDRAW
-            else if ("WITHDRAW".equals(nextOperation)) {
-                double amountObj = Double.parseDouble(opAmount);
-                if (amountObj <= 0) {
-                    lastTransactionResult = "FAIL:INVALID_AMOUNT";
-                    return;
+            else if ("WITHDRAW".equals(op)) {
+                if (amount <= 0) {
+                    return "FAIL:INVALID_AMOUNT";
                 }
 
-                double currentBalance = localDB.getBalance(opUser);
-                if (currentBalance != -1.0) {
-                    if (currentBalance >= amountObj) {
-                        double newBalance = currentBalance - amountObj;
-                        localDB.updateBalance(opUser, newBalance);
-
-                        // Broadcast replication
-                        broadcastReplication("REPLICATE_UPDATE:" + opUser + ":" + newBalance);
-
-                        // LOG TRANSACTION WITH TIMESTAMP
-                        String ts = localDB.logTransaction("WITHDRAW", opUser, opAmount, null, timestamp);
-                        if (ts != null) {
-                            broadcastReplication(
-                                    "REPLICATE_LOG:" + ts + "~WITHDRAW~" + opUser + "~" + opAmount + "~null~"
-                                            + getNodeId() + "~" + timestamp);
-                        }
-
-                        lastTransactionResult = "OK:WITHDRAW_SUCCESS:NewBalance=" + newBalance;
-                        System.out.println("✅ ATM " + getNodeId() + ": Withdrew $" + amountObj + " from " + opUser);
-                    } else {
-                        lastTransactionResult = "FAIL:INSUFFICIENT_FUNDS";
-                    }
+                // Conditional delta (only if balance >= amount) + ledger row, atomically
+                long hlc = nextHlc();
+                Database.BalanceChange change = localDB.withdraw(user, amount, timestamp, hlc,
+                        ts -> WireCodec.encode(replicationOp(ts, "WITHDRAW", user, amount, "null", timestamp, hlc)));
+                if (change.ok()) {
+                    acks.addAll(broadcastReplication(change.outboxId,
+                            replicationOp(change.timestamp, "WITHDRAW", user, amount, "null", timestamp, hlc)));
+
+                    result = "OK:WITHDRAW_SUCCESS:NewBalance=" + Money.format(change.newBalance);
+                    System.out.println("✅ ATM " + getNodeId() + ": Withdrew $" + Money.format(amount) + " from " + user);
                 } else {
-                    lastTransactionResult = "FAIL:USER_NOT_FOUND";
+                    result = change.status;
                 }
             }
 
             // 3. TRANSFER
-            else if ("TRANSFER".equals(nextOperation)) {
-                double amountObj = Double.parseDouble(opAmount);
-                if (amountObj <= 0) {
-                    lastTransactionResult = "FAIL:INVALID_AMOUNT";
-                    return;
+            else if ("TRANSFER".equals(op)) {
+                if (amount <= 0) {
+                    return "FAIL:INVALID_AMOUNT";
                 }
 
-                double senderBalance = localDB.getBalance(opUser);
-                double receiverBalance = localDB.getBalance(opTarget);
-                String receiverRole = localDB.getRole(opTarget);
-
                 // Validation: Prevent transfers to admin accounts
-                if ("admin".equals(receiverRole)) {
-                    lastTransactionResult = "FAIL:CANNOT_TRANSFER_TO_ADMIN";
-                    return;
+                if ("admin".equals(localDB.getRole(target))) {
+                    return "FAIL:CANNOT_TRANSFER_TO_ADMIN";
                 }
 
-                // Validate sender has funds AND receiver exists
-                if (senderBalance != -1.0 && receiverBalance != -1.0 && senderBalance >= amountObj) {
-                    double newSenderBalance = senderBalance - amountObj;
-                    double newReceiverBalance = receiverBalance + amountObj;
-
-                    localDB.updateBalance(opUser, newSenderBalance);
-                    localDB.updateBalance(opTarget, newReceiverBalance);
-
-                    // REPLICATE BOTH
-                    broadcastReplication("REPLICATE_UPDATE:" + opUser + ":" + newSenderBalance);
-                    broadcastReplication("REPLICATE_UPDATE:" + opTarget + ":" + newReceiverBalance);
-
-                    // LOG TRANSACTION WITH TIMESTAMP
-                    String ts = localDB.logTransaction("TRANSFER", opUser, opAmount, opTarget, timestamp);
-                    if (ts != null) {
-                        broadcastReplication(
-                                "REPLICATE_LOG:" + ts + "~TRANSFER~" + opUser + "~" + opAmount + "~" + opTarget
-                                        + "~" + getNodeId() + "~" + timestamp);
-                    }
-
-                    lastTransactionResult = "OK:TRANSFER_SUCCESS:NewBalance=" + newSenderBalance;
-                    System.out.println("✅ ATM " + getNodeId() + ": Transferred $" + amountObj + " from " + opUser
-                            + " to " + opTarget);
+                // Debit (only if funds suffice), credit and ledger row in one DB transaction
+                long hlc = nextHlc();
+                Database.BalanceChange change = localDB.transfer(user, target, amount, timestamp, hlc,
+                        ts -> WireCodec.encode(replicationOp(ts, "TRANSFER", user, amount, target, timestamp, hlc)));
+                if (change.ok()) {
+                    // One operation carries both legs (debit user, credit target)
+                    acks.addAll(broadcastReplication(change.outboxId,
+                            replicationOp(change.timestamp, "TRANSFER", user, amount, target, timestamp, hlc)));
+
+                    result = "OK:TRANSFER_SUCCESS:NewBalance=" + Money.format(change.newBalance);
+                    System.out.println("✅ ATM " + getNodeId() + ": Transferred $" + Money.format(amount) + " from " + user
+                            + " to " + target);
                 } else {
-                    if (receiverBalance == -1) {
-                        lastTransactionResult = "FAIL:RECEIVER_NOT_FOUND";
-                    } else {
-                        lastTransactionResult = "FAIL:INSUFFICIENT_FUNDS";
-                    }
+                    result = change.status;
                 }
             }
         } catch (Exception e) {
-            System.err.println("❌ EXCEPTION in onCriticalSection: " + e.getMessage());
+            System.err.println("❌ EXCEPTION in critical section: " + e.getMessage());
             e.printStackTrace();
-            lastTransactionResult = "FAIL:EXCEPTION:" + e.getMessage();
+            result = "FAIL:EXCEPTION:" + e.getMessage();
+        } finally {
+            outbox.release(outboxTicket);
         }
+        return result;
     }
 
     public String forgetPassword(String id, String fullName, String phone, String newPass) {
@@ -701,12 +847,21 @@ public class ATMNode extends RicartNode {
 
         // 2. Verify details locally
         if (localDB.verifyForgetDetails(id, fullName, phone)) {
-            // 2. Update locally
-            localDB.updatePassword(id, newPass);
-
-            // 3. Replicate to peers
             String passHash = PasswordUtils.hash(newPass);
-            broadcastReplication("REPLICATE_PASSWORD_UPDATE:" + id + ":" + passHash);
+            PeerMessage replication = new PeerMessage(PeerMessage.REPLICATE_PASSWORD_UPDATE, 0, getNodeId(), id,
+                    passHash);
+
+            // 2. Update locally, committed with its outbox record
+            long outboxTicket = outbox.reserve();
+            try {
+                Database.RecordedWrite write = localDB.resetPassword(id, passHash, WireCodec.encode(replication));
+                if (!write.ok())
+                    return write.status;
+                // 3. Replicate to peers
+                broadcastReplication(write.outboxId, replication);
+            } finally {
+                outbox.release(outboxTicket);
+            }
 
             System.out.println("✅ ATM " + getNodeId() + ": Password reset for " + id + " and replicated");
             return "OK:PASSWORD_RESET";
@@ -0,0 +1,94 @@
+package bank;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AccountCache
+ *
+ * Write-through cache of user rows in front of MySQL, owned by Database.
+ * - A row is loaded on its first read. After that, every write that goes
+ * through Database (local operations, REPLICATE_*, sync upserts, password
+ * changes) updates the cached row once it has committed, so readers never
+ * see a balance that a rolled-back batch takes away.
+ * - Callers always get a copy, so they cannot change the cached row.
+ * - Bounded: past maxEntries, new accounts are read from MySQL uncached.
+ */
+public class AccountCache {
+
+    private final ConcurrentHashMap<String, Database.Account> rows = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    AccountCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return a copy of the cached row, or null if it is not cached
+     */
+    Database.Account get(String id) {
+        Database.Account acc = rows.get(id);
+        if (acc == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(acc);
+    }
+
+    void put(Database.Account acc) {
+        if (acc == null || acc.id == null)
+            return;
+        if (rows.size() >= maxEntries && !rows.containsKey(acc.id))
+            return;
+        rows.put(acc.id, copy(acc));
+    }
+
+    void updateBalance(String id, long balance) {
+        rows.computeIfPresent(id, (key, acc) -> {
+            Database.Account updated = copy(acc);
+            updated.balance = balance;
+            return updated;
+        });
+    }
+
+    // Replicated operation: same delta as the SQL UPDATE
+    void addToBalance(String id, long delta) {
+        rows.computeIfPresent(id, (key, acc) -> {
+            Database.Account updated = copy(acc);
+            updated.balance += delta;
+            return updated;
+        });
+    }
+
+    void updatePassword(String id, String passHash) {
+        rows.computeIfPresent(id, (key, acc) -> {
+            Database.Account updated = copy(acc);
+            updated.password = passHash;
+            return updated;
+        });
+    }
+
+    // The DB state is unknown (failed write): reload on the next read
+    void invalidate(String id) {
+        rows.remove(id);
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    private static Database.Account copy(Database.Account acc) {
+        return new Database.Account(acc.id, acc.name, acc.phoneNumber, acc.password, acc.balance, acc.role);
+    }
+}
@@ -1,8 +1,8 @@
 package bank;
 
+import algorithm.PeerListener;
+import algorithm.PeerMessage;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -19,6 +19,7 @@ public class BankServer {
     private static final int PORT = 9000;
     private static Database db;
     private static final String LOG_FILE = "server_log.txt";
+    private static final int HANDLER_THREADS = 8;
 
     public static void main(String[] args) {
         System.out.println("$$$ BANK SERVER STARTED ON PORT " + PORT + " $$$");
@@ -30,31 +31,24 @@ public class BankServer {
         // Helper: Check if accounts exist, else created by db.load()
         System.out.println("Database Ready.");
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleClient(clientSocket)).start();
-            }
+        // Selector-driven listener with a bounded handler pool (no thread per client)
+        PeerListener listener = new PeerListener(PORT, "BankServer", BankServer::handleCommand, HANDLER_THREADS);
+        try {
+            listener.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void handleClient(Socket socket) {
-        try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            String command = in.readLine();
-            if (command == null)
-                return;
-
-            String response = processCommand(command);
-            out.println(response);
-            System.out.println("Processed: " + command + " -> " + response);
+    private static void handleCommand(PeerMessage message, PeerListener.Reply reply) {
+        // BankServer speaks plain text lines only
+        if (message.type != PeerMessage.TEXT)
+            return;
 
-        } catch (IOException e) {
-            System.err.println("Error handling client: " + e.getMessage());
-        }
+        String command = message.arg(0);
+        String response = processCommand(command);
+        reply.send(PeerMessage.text(response));
+        System.out.println("Processed: " + command + " -> " + response);
     }
 
     private static synchronized String processCommand(String command) {
@@ -84,14 +78,14 @@ public class BankServer {
                         return "FAIL:INVALID_ARGS";
                     String rUser = parts[1];
                     String rPass = parts[2];
-                    double rAmount = 0;
+                    long rAmount = 0;
                     try {
-                        rAmount = Double.parseDouble(parts[3]);
+                        rAmount = Money.parse(parts[3]);
                     } catch (NumberFormatException e) {
                         return "FAIL:INVALID_AMOUNT";
                     }
 
-                    if (rAmount <= 500) {
+                    if (rAmount <= 500 * Money.CENTS_PER_UNIT) {
                         return "FAIL:MIN_DEPOSIT_500";
                     }
 
@@ -107,7 +101,7 @@ public class BankServer {
                     }
 
                     if (db.createAccount(rUser, rName, rPass, rAmount)) {
-                        logTransaction(rUser, "REGISTERED (Init: $" + rAmount + ")");
+                        logTransaction(rUser, "REGISTERED (Init: $" + Money.format(rAmount) + ")");
                         return "OK:CREATED";
                     } else {
                         return "FAIL:EXISTS";
@@ -115,46 +109,46 @@ public class BankServer {
 
                 case "BALANCE":
                     String userId = parts[1];
-                    double bal = db.getBalance(userId);
-                    if (bal == -1.0)
+                    long bal = db.getBalance(userId);
+                    if (bal == Database.NO_ACCOUNT)
                         return "FAIL:USER_NOT_FOUND";
-                    return "OK:" + bal;
+                    return "OK:" + Money.format(bal);
 
                 case "WITHDRAW":
                     String wUser = parts[1];
-                    double wAmount = Double.parseDouble(parts[2]);
-                    double wBal = db.getBalance(wUser);
+                    long wAmount = Money.parse(parts[2]);
+                    long wBal = db.getBalance(wUser);
 
-                    if (wBal == -1.0)
+                    if (wBal == Database.NO_ACCOUNT)
                         return "FAIL:USER_NOT_FOUND";
                     if (wBal >= wAmount) {
                         db.updateBalance(wUser, wBal - wAmount);
-                        logTransaction(wUser, "WITHDRAW $" + wAmount);
-                        return "OK:NEW_BALANCE=" + (wBal - wAmount);
+                        logTransaction(wUser, "WITHDRAW $" + Money.format(wAmount));
+                        return "OK:NEW_BALANCE=" + Money.format(wBal - wAmount);
                     } else {
                         return "FAIL:INSUFFICIENT_FUNDS";
                     }
 
                 case "DEPOSIT":
                     String dUser = parts[1];
-                    double dAmount = Double.parseDouble(parts[2]);
-                    double dBal = db.getBalance(dUser);
+                    long dAmount = Money.parse(parts[2]);
+                    long dBal = db.getBalance(dUser);
 
-                    if (dBal == -1.0)
+                    if (dBal == Database.NO_ACCOUNT)
                         return "FAIL:USER_NOT_FOUND";
 
                     db.updateBalance(dUser, dBal + dAmount);
-                    logTransaction(dUser, "DEPOSIT $" + dAmount);
-                    return "OK:NEW_BALANCE=" + (dBal + dAmount);
+                    logTransaction(dUser, "DEPOSIT $" + Money.format(dAmount));
+                    return "OK:NEW_BALANCE=" + Money.format(dBal + dAmount);
 
                 case "TRANSFER":
                     // TRANSFER <FromUser> <ToUser> <Amount>
                     String fromUser = parts[1];
                     String toUser = parts[2];
-                    double tAmount = Double.parseDouble(parts[3]);
+                    long tAmount = Money.parse(parts[3]);
 
-                    double fBal = db.getBalance(fromUser);
-                    if (fBal == -1.0)
+                    long fBal = db.getBalance(fromUser);
+                    if (fBal == Database.NO_ACCOUNT)
                         return "FAIL:SENDER_NOT_FOUND";
 
                     if (!db.accountExists(toUser)) {
@@ -164,8 +158,8 @@ public class BankServer {
                     if (fBal >= tAmount) {
                         db.updateBalance(fromUser, fBal - tAmount);
                         db.updateBalance(toUser, db.getBalance(toUser) + tAmount);
-                        logTransaction(fromUser, "TRANSFER $" + tAmount + " to " + toUser);
-                        return "OK:TRANSFERRED_$" + tAmount;
+                        logTransaction(fromUser, "TRANSFER $" + Money.format(tAmount) + " to " + toUser);
+                        return "OK:TRANSFERRED_$" + Money.format(tAmount);
                     } else {
                         return "FAIL:INSUFFICIENT_FUNDS";
                     }
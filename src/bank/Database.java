@@ -1,6 +1,10 @@
 package bank;
 
+import algorithm.NodeConfig;
 import java.sql.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 // import java.util.*; -> Unused
 
 /**
@@ -9,6 +13,16 @@ import java.sql.*;
  * Persistent Database using MySQL.
  * Configured for XAMPP (root, no password).
  * DISTRIBUTED VERSION: Each node has its own database instance.
+ * Account reads are served from a write-through AccountCache.
+ * Balance and ledger writes go through a GroupCommitter: concurrent writes
+ * share one COMMIT, and each call returns only once its write is durable.
+ * Replicated operations are applied exactly once per account, tracked in
+ * the applied_ops table (see applyOperation).
+ * Money is a long count of cents (see Money) in memory and DECIMAL(19,2) in
+ * MySQL, so balances are exact and identical on every node.
+ * Outgoing replication records are kept in replication_outbox (written in
+ * the same transaction as the change) with a delivery cursor per peer in
+ * replication_cursors; see ReplicationOutbox.
  */
 public class Database {
 
@@ -18,6 +32,18 @@ public class Database {
     private static final String PASS = "";
 
     private Connection conn;
+    // Serializes writes on the shared connection. Replaces synchronized methods so a
+    // virtual thread blocked in JDBC does not pin its carrier thread.
+    // The group committer holds it for a whole batch, so reads that take it
+    // never see a batch's uncommitted rows.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Balance/role/password lookups without a round trip to MySQL
+    private final AccountCache accountCache = new AccountCache(NodeConfig.getInt("db.cacheMaxAccounts", 100000));
+    // Batches balance/ledger writes into shared transactions (null without a connection)
+    private GroupCommitter committer;
+    // Committer thread only: accounts written by units of the open batch.
+    // Their cached rows lag the batch until it commits.
+    private final java.util.Set<String> batchWrites = new java.util.HashSet<>();
     private String dbName;
     private int nodeId;
 
@@ -26,10 +52,10 @@ public class Database {
         public String name;
         public String phoneNumber;
         public String password;
-        public double balance;
+        public long balance; // Cents
         public String role;
 
-        public Account(String id, String name, String password, double balance, String role) {
+        public Account(String id, String name, String password, long balance, String role) {
             this.id = id;
             this.name = name;
             this.password = password;
@@ -37,7 +63,7 @@ public class Database {
             this.role = role;
         }
 
-        public Account(String id, String name, String phoneNumber, String password, double balance, String role) {
+        public Account(String id, String name, String phoneNumber, String password, long balance, String role) {
             this.id = id;
             this.name = name;
             this.phoneNumber = phoneNumber;
@@ -56,6 +82,7 @@ public class Database {
         this.dbName = DB_BASE_NAME + "_node" + nodeId;
         connect();
         initDB();
+        startGroupCommit();
     }
 
     /**
@@ -66,6 +93,7 @@ public class Database {
         this.dbName = DB_BASE_NAME;
         connect();
         initDB();
+        startGroupCommit();
     }
 
     public String getDatabaseName() {
@@ -76,6 +104,15 @@ public class Database {
         return nodeId;
     }
 
+    public AccountCache getAccountCache() {
+        return accountCache;
+    }
+
+    // Writes per COMMIT so far (0 without a connection)
+    public double getAverageCommitBatch() {
+        return (committer == null) ? 0.0 : committer.averageBatchSize();
+    }
+
     private void connect() {
         try {
             // Explicitly load driver to ensure it's registered
@@ -97,6 +134,48 @@ public class Database {
         }
     }
 
+    private void startGroupCommit() {
+        if (conn == null)
+            return;
+        committer = new GroupCommitter(dbName, conn, writeLock, batchWrites::clear,
+                NodeConfig.getInt("db.groupCommitMaxBatch", 64),
+                NodeConfig.getLong("db.groupCommitLingerMs", 0));
+    }
+
+    /**
+     * Run a write through the group commit and wait until its batch is
+     * durable. Returns onError if the write or the batch commit failed.
+     */
+    private <T> T commitGrouped(String what, GroupCommitter.Work<T> work, Predicate<? super T> keep, T onError) {
+        return commitGrouped(what, work, keep, onError, onError);
+    }
+
+    /**
+     * As above, but returns onRejected if the write itself can never succeed
+     * (see isPermanent), so replication can tell it from a passing failure.
+     */
+    private <T> T commitGrouped(String what, GroupCommitter.Work<T> work, Predicate<? super T> keep, T onError,
+            T onRejected) {
+        try {
+            return committer.submit(work, keep).join();
+        } catch (CompletionException e) {
+            Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+            System.err.println(what + " Error: " + cause.getMessage());
+            return isPermanent(cause) ? onRejected : onError;
+        }
+    }
+
+    /**
+     * True for errors that retrying the same write can't fix: constraint
+     * violations, bad or out-of-range data, malformed SQL. Lost connections,
+     * lock timeouts and deadlocks are passing.
+     */
+    static boolean isPermanent(Throwable e) {
+        if (e instanceof DataTruncation)
+            return true;
+        return e instanceof SQLNonTransientException && !(e instanceof SQLNonTransientConnectionException);
+    }
+
     private void initDB() {
         if (conn == null)
             return;
@@ -107,7 +186,7 @@ public class Database {
                 + "name VARCHAR(100) NOT NULL, "
                 + "phone_number VARCHAR(20), "
                 + "password VARCHAR(100) NOT NULL, "
-                + "balance DOUBLE DEFAULT 0.0, "
+                + "balance DECIMAL(19,2) DEFAULT 0.00, "
                 + "role VARCHAR(20) DEFAULT 'user')";
 
         String sqlTrans = "CREATE TABLE IF NOT EXISTS transactions ("
@@ -115,23 +194,57 @@ public class Database {
                 + "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
                 + "type VARCHAR(20), "
                 + "user_id VARCHAR(30), "
-                + "amount VARCHAR(20), "
+                + "amount DECIMAL(19,2), "
                 + "target_id VARCHAR(30), "
                 + "node_id INT, "
-                + "lamport_clock INT DEFAULT 0)";
+                + "lamport_clock INT DEFAULT 0, "
+                + "hlc BIGINT DEFAULT 0)";
+
+        // One row per (operation, account) leg whose delta is in this node's balance.
+        // An operation is identified by (origin node, hlc).
+        String sqlOps = "CREATE TABLE IF NOT EXISTS applied_ops ("
+                + "origin_node INT NOT NULL, "
+                + "hlc BIGINT NOT NULL, "
+                + "account_id VARCHAR(30) NOT NULL, "
+                + "PRIMARY KEY (origin_node, hlc, account_id))";
+
+        // Replication records not yet known to be on every peer, in commit order
+        String sqlOutbox = "CREATE TABLE IF NOT EXISTS replication_outbox ("
+                + "id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                + "payload MEDIUMBLOB NOT NULL)";
+        // Per peer: every outbox record up to acked_id has been applied there
+        String sqlCursors = "CREATE TABLE IF NOT EXISTS replication_cursors ("
+                + "peer_id INT PRIMARY KEY, "
+                + "acked_id BIGINT NOT NULL)";
 
         try (Statement stmt = conn.createStatement()) {
             stmt.execute(sqlUsers);
             stmt.execute(sqlTrans);
+            boolean newOpsTable = !tableExists("applied_ops");
+            stmt.execute(sqlOps);
+            stmt.execute(sqlOutbox);
+            stmt.execute(sqlCursors);
 
             // 2. Automated Schema Evolution (Ensuring columns exist for existing databases)
             ensureColumnExists("users", "phone_number", "VARCHAR(20)");
             ensureColumnExists("users", "role", "VARCHAR(20) DEFAULT 'user'");
-            ensureColumnExists("users", "balance", "DOUBLE DEFAULT 0.0");
+            ensureColumnExists("users", "balance", "DECIMAL(19,2) DEFAULT 0.00");
             ensureColumnExists("transactions", "lamport_clock", "INT DEFAULT 0");
+            ensureColumnExists("transactions", "hlc", "BIGINT DEFAULT 0");
+            ensureIndexExists("transactions", "idx_transactions_hlc", "hlc, node_id");
+            if (newOpsTable) {
+                // Balances so far already include every stamped ledger row (they were
+                // replicated as absolute values): record those legs as applied
+                stmt.executeUpdate("INSERT IGNORE INTO applied_ops (origin_node, hlc, account_id) "
+                        + "SELECT node_id, hlc, user_id FROM transactions WHERE hlc > 0");
+                stmt.executeUpdate("INSERT IGNORE INTO applied_ops (origin_node, hlc, account_id) "
+                        + "SELECT node_id, hlc, target_id FROM transactions WHERE hlc > 0 AND type = 'TRANSFER'");
+                System.out.println("Database Migration: Created [applied_ops] from existing ledger rows");
+            }
 
-            // 3. Fix data types if they were legacy (INT -> DOUBLE)
-            stmt.executeUpdate("ALTER TABLE users MODIFY COLUMN balance DOUBLE DEFAULT 0.0");
+            // 3. Fix data types if they were legacy (INT/DOUBLE balance, VARCHAR amount -> exact DECIMAL)
+            ensureColumnType("users", "balance", "decimal", "DECIMAL(19,2) DEFAULT 0.00");
+            ensureColumnType("transactions", "amount", "decimal", "DECIMAL(19,2)");
             stmt.executeUpdate("UPDATE users SET role = 'user' WHERE role IS NULL");
 
             // 4. Cleanup old data
@@ -154,6 +267,18 @@ public class Database {
         }
     }
 
+    private boolean tableExists(String tableName) {
+        String checkSql = "SELECT COUNT(*) FROM information_schema.tables WHERE table_schema = ? AND table_name = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
+            pstmt.setString(1, dbName);
+            pstmt.setString(2, tableName);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() && rs.getInt(1) > 0;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
     /**
      * Helper to ensure a column exists in a table.
      * Makes the system self-contained and plug-and-play.
@@ -179,104 +304,181 @@ public class Database {
         }
     }
 
-    public synchronized String createAccountExtended(String id, String name, String phone,
-            String password, double initialBalance,
+    /**
+     * Convert a legacy column in place (MySQL rounds existing values to the new type).
+     */
+    private void ensureColumnType(String tableName, String columnName, String dataType, String definition) {
+        String checkSql = "SELECT data_type FROM information_schema.columns " +
+                "WHERE table_schema = ? AND table_name = ? AND column_name = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
+            pstmt.setString(1, dbName);
+            pstmt.setString(2, tableName);
+            pstmt.setString(3, columnName);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next() && !dataType.equalsIgnoreCase(rs.getString(1))) {
+                String from = rs.getString(1);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("ALTER TABLE " + tableName + " MODIFY COLUMN " + columnName + " " + definition);
+                    System.out.println("Database Migration: Converted [" + tableName + "." + columnName + "] from "
+                            + from + " to " + definition);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Database Migration: Could not convert [" + tableName + "." + columnName + "]: "
+                    + e.getMessage());
+        }
+    }
+
+    public String createAccountExtended(String id, String name, String phone,
+            String password, long initialBalance,
             String role) {
         return createAccountWithHashExtended(id, name, phone, PasswordUtils.hash(password), initialBalance, role);
     }
 
-    public synchronized String createAccountWithHashExtended(String id, String name, String phone,
-            String passHash, double initialBalance,
+    public String createAccountWithHashExtended(String id, String name, String phone,
+            String passHash, long initialBalance,
             String role) {
+        writeLock.lock();
+        try {
+            if (conn == null)
+                return "DATABASE_CONNECTION_ERROR";
+
+            String sql = "INSERT INTO users (id, name, phone_number, password, balance, role) VALUES (?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, id);
+                pstmt.setString(2, name);
+                pstmt.setString(3, phone);
+                pstmt.setString(4, passHash);
+                pstmt.setBigDecimal(5, Money.toDecimal(initialBalance));
+                pstmt.setString(6, role);
+                pstmt.executeUpdate();
+                accountCache.put(new Account(id, name, phone, passHash, initialBalance, role));
+                return "OK";
+            } catch (SQLException e) {
+                System.err.println("Create Account Error: " + e.getMessage());
+                if (e.getErrorCode() == 1062) { // Duplicate entry
+                    return "FAIL:EXISTS";
+                }
+                if (isPermanent(e))
+                    return "FAIL:INVALID_DATA:" + e.getMessage();
+                return "FAIL:SQL_ERROR:" + e.getMessage();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Create an account and its replication record in one unit of a group
+     * commit (transactional outbox, like applyChange): if the account
+     * exists, so does the record that will bring it to the peers.
+     */
+    public RecordedWrite registerAccount(String id, String name, String phone, String passHash,
+            long initialBalance, String role, byte[] outboxRecord) {
         if (conn == null)
-            return "DATABASE_CONNECTION_ERROR";
+            return RecordedWrite.fail("DATABASE_CONNECTION_ERROR");
 
         String sql = "INSERT INTO users (id, name, phone_number, password, balance, role) VALUES (?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, id);
-            pstmt.setString(2, name);
-            pstmt.setString(3, phone);
-            pstmt.setString(4, passHash);
-            pstmt.setDouble(5, initialBalance);
-            pstmt.setString(6, role);
-            pstmt.executeUpdate();
-            return "OK";
-        } catch (SQLException e) {
-            System.err.println("Create Account Error: " + e.getMessage());
-            if (e.getErrorCode() == 1062) { // Duplicate entry
-                return "FAIL:EXISTS";
+        RecordedWrite result = commitGrouped("Create Account", c -> {
+            try (PreparedStatement pstmt = c.prepareStatement(sql)) {
+                pstmt.setString(1, id);
+                pstmt.setString(2, name);
+                pstmt.setString(3, phone);
+                pstmt.setString(4, passHash);
+                pstmt.setBigDecimal(5, Money.toDecimal(initialBalance));
+                pstmt.setString(6, role);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                if (e.getErrorCode() == 1062) // Duplicate entry
+                    return RecordedWrite.fail("FAIL:EXISTS");
+                throw e;
             }
-            return "FAIL:SQL_ERROR:" + e.getMessage();
-        }
+            long outboxId = insertOutbox(c, outboxRecord);
+            // Later units of this batch must read the row from MySQL, not cache it uncommitted
+            batchWrites.add(id);
+            committer.afterCommit(() -> accountCache.put(new Account(id, name, phone, passHash, initialBalance, role)));
+            return new RecordedWrite("OK", outboxId);
+        }, RecordedWrite::ok, RecordedWrite.fail("FAIL:SQL_ERROR"), RecordedWrite.fail("FAIL:INVALID_DATA"));
+        if (result.ok())
+            System.out.println("Database: Created account " + id + " with replication record #" + result.outboxId);
+        return result;
     }
 
-    public synchronized boolean createAccount(String id, String name, String phone,
-            String password, double initialBalance,
+    public boolean createAccount(String id, String name, String phone,
+            String password, long initialBalance,
             String role) {
         return "OK".equals(createAccountExtended(id, name, phone, password, initialBalance, role));
     }
 
-    public synchronized boolean createAccountWithHash(String id, String name, String phone,
-            String passHash, double initialBalance,
+    public boolean createAccountWithHash(String id, String name, String phone,
+            String passHash, long initialBalance,
             String role) {
         return "OK".equals(createAccountWithHashExtended(id, name, phone, passHash, initialBalance, role));
     }
 
     // Compat method for legacy replication or admin
-    public synchronized boolean createAccount(String id, String name, String password, double initialBalance,
+    public boolean createAccount(String id, String name, String password, long initialBalance,
             String role) {
         return createAccount(id, name, "000", password, initialBalance, role);
     }
 
     // Default version for regular users
-    public synchronized boolean createAccount(String id, String name, String password, double initialBalance) {
+    public boolean createAccount(String id, String name, String password, long initialBalance) {
         return createAccount(id, name, password, initialBalance, "user");
     }
 
     public boolean authenticate(String id, String password) {
-        if (conn == null)
-            return false;
-        String sql = "SELECT password FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, id);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                String storedHash = rs.getString("password");
-                return storedHash.equals(PasswordUtils.hash(password));
-            }
-            return false;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
-        }
+        Account acc = getAccount(id);
+        return acc != null && acc.password != null && acc.password.equals(PasswordUtils.hash(password));
     }
 
     public Account getAccount(String id) {
+        Account cached = accountCache.get(id);
+        if (cached != null)
+            return cached;
         if (conn == null)
             return null;
-        String sql = "SELECT * FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, id);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                Account acc = new Account(
-                        rs.getString("id"),
-                        rs.getString("name"),
-                        rs.getString("password"),
-                        rs.getDouble("balance"),
-                        rs.getString("role"));
-                acc.phoneNumber = rs.getString("phone_number");
-                return acc;
+
+        // Load under the write lock, so a concurrent write can't be overwritten
+        // in the cache by the older row we are reading
+        writeLock.lock();
+        try {
+            cached = accountCache.get(id);
+            if (cached != null)
+                return cached;
+            String sql = "SELECT * FROM users WHERE id = ?";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, id);
+                ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    Account acc = new Account(
+                            rs.getString("id"),
+                            rs.getString("name"),
+                            rs.getString("password"),
+                            Money.fromDecimal(rs.getBigDecimal("balance")),
+                            rs.getString("role"));
+                    acc.phoneNumber = rs.getString("phone_number");
+                    accountCache.put(acc);
+                    return acc;
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return null;
+        } finally {
+            writeLock.unlock();
         }
-        return null;
     }
 
-    public double getBalance(String id) {
+    // getBalance result for an unknown account
+    public static final long NO_ACCOUNT = Long.MIN_VALUE;
+
+    /**
+     * @return balance in cents, or NO_ACCOUNT
+     */
+    public long getBalance(String id) {
         Account acc = getAccount(id);
-        return (acc != null) ? acc.balance : -1.0;
+        return (acc != null) ? acc.balance : NO_ACCOUNT;
     }
 
     public String getRole(String id) {
@@ -288,18 +490,28 @@ public class Database {
         return getAccount(id) != null;
     }
 
-    public synchronized void updateBalance(String id, double newBalance) {
+    /**
+     * @return false if the write failed
+     */
+    public boolean updateBalance(String id, long newBalance) {
         if (conn == null)
-            return;
+            return false;
         String sql = "UPDATE users SET balance = ? WHERE id = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setDouble(1, newBalance);
-            pstmt.setString(2, id);
-            pstmt.executeUpdate();
-            System.out.println("Database: Updated " + id + " -> $" + newBalance);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        Boolean ok = commitGrouped("Update Balance", c -> {
+            try (PreparedStatement pstmt = c.prepareStatement(sql)) {
+                pstmt.setBigDecimal(1, Money.toDecimal(newBalance));
+                pstmt.setString(2, id);
+                pstmt.executeUpdate();
+            }
+            batchWrites.add(id);
+            committer.afterCommit(() -> accountCache.updateBalance(id, newBalance));
+            return Boolean.TRUE;
+        }, r -> true, Boolean.FALSE);
+        if (ok)
+            System.out.println("Database: Updated " + id + " -> $" + Money.format(newBalance));
+        else
+            accountCache.invalidate(id);
+        return ok;
     }
 
     /**
@@ -311,22 +523,27 @@ public class Database {
             return "";
         StringBuilder sb = new StringBuilder();
         String sql = "SELECT * FROM users";
-        try (Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(sql)) {
-
-            while (rs.next()) {
-                if (sb.length() > 0)
-                    sb.append("|");
-                // Using ~ as delimiter to avoid collision with names/other strings
-                sb.append(rs.getString("id")).append("~")
-                        .append(rs.getString("name")).append("~")
-                        .append(rs.getString("phone_number")).append("~")
-                        .append(rs.getString("password")).append("~")
-                        .append(rs.getDouble("balance")).append("~")
-                        .append(rs.getString("role"));
+        writeLock.lock();
+        try {
+            try (Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery(sql)) {
+
+                while (rs.next()) {
+                    if (sb.length() > 0)
+                        sb.append("|");
+                    // Using ~ as delimiter to avoid collision with names/other strings
+                    sb.append(rs.getString("id")).append("~")
+                            .append(rs.getString("name")).append("~")
+                            .append(rs.getString("phone_number")).append("~")
+                            .append(rs.getString("password")).append("~");
+                    Money.appendTo(sb, Money.fromDecimal(rs.getBigDecimal("balance"))).append("~")
+                            .append(rs.getString("role"));
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } finally {
+            writeLock.unlock();
         }
         return sb.toString();
     }
@@ -334,37 +551,110 @@ public class Database {
     /**
      * Insert or Update account (Upsert) for synchronization
      */
-    public synchronized void upsertAccount(String id, String name, String phone,
-            String password, double balance, String role) {
+    /**
+     * Merge an account from a peer's sync snapshot.
+     * - Existing account: name/phone/password/role are refreshed, the balance
+     * is NOT touched (it only changes through operations, see applyOperation).
+     * - Missing account: created with the peer's balance. That balance already
+     * includes the snapshot's operations on this account (includedOps), so
+     * their legs are recorded as applied in the same transaction.
+     */
+    public void upsertAccount(String id, String name, String phone,
+            String password, long balance, String role, java.util.List<Transaction> includedOps) {
         if (conn == null)
             return;
 
-        if (accountExists(id)) {
-            String sql = "UPDATE users SET name=?, phone_number=?, password=?, balance=?, role=? WHERE id=?";
-            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setString(1, name);
-                pstmt.setString(2, phone);
-                pstmt.setString(3, password);
-                pstmt.setDouble(4, balance);
-                pstmt.setString(5, role);
-                pstmt.setString(6, id);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                e.printStackTrace();
+        Account existing = getAccount(id);
+        if (existing != null) {
+            if (java.util.Objects.equals(existing.name, name) && java.util.Objects.equals(existing.phoneNumber, phone)
+                    && java.util.Objects.equals(existing.password, password)
+                    && java.util.Objects.equals(existing.role, role))
+                return;
+            writeLock.lock();
+            try {
+                String sql = "UPDATE users SET name=?, phone_number=?, password=?, role=? WHERE id=?";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setString(1, name);
+                    pstmt.setString(2, phone);
+                    pstmt.setString(3, password);
+                    pstmt.setString(4, role);
+                    pstmt.setString(5, id);
+                    pstmt.executeUpdate();
+                    // Balance is whatever is current (writes to it hold this lock)
+                    Account current = getAccount(id);
+                    if (current != null)
+                        accountCache.put(new Account(id, name, phone, password, current.balance, role));
+                } catch (SQLException e) {
+                    accountCache.invalidate(id);
+                    e.printStackTrace();
+                }
+            } finally {
+                writeLock.unlock();
             }
-        } else {
-            // IMPORTANT: Synchronization usually sends the already hashed password
-            // So we use createAccountWithHash to avoid double-hashing
-            createAccountWithHash(id, name, phone, password, balance, role);
+            return;
         }
+
+        // IMPORTANT: Synchronization sends the already hashed password (no double-hashing)
+        String sql = "INSERT IGNORE INTO users (id, name, phone_number, password, balance, role) VALUES (?, ?, ?, ?, ?, ?)";
+        Boolean created = commitGrouped("Sync Account", c -> {
+            try (PreparedStatement pstmt = c.prepareStatement(sql)) {
+                pstmt.setString(1, id);
+                pstmt.setString(2, name);
+                pstmt.setString(3, phone);
+                pstmt.setString(4, password);
+                pstmt.setBigDecimal(5, Money.toDecimal(balance));
+                pstmt.setString(6, role);
+                if (pstmt.executeUpdate() == 0)
+                    return Boolean.FALSE; // Created meanwhile (REPLICATE_CREATE)
+            }
+            if (includedOps != null) {
+                for (Transaction t : includedOps) {
+                    if (t.hlc > 0 && (id.equals(t.userId) || id.equals(t.targetId)))
+                        markApplied(c, t.nodeId, t.hlc, id);
+                }
+            }
+            batchWrites.add(id);
+            committer.afterCommit(() -> accountCache.put(new Account(id, name, phone, password, balance, role)));
+            return Boolean.TRUE;
+        }, r -> true, Boolean.FALSE);
+        if (created)
+            System.out.println("Database: Synced new account " + id + " -> $" + Money.format(balance));
+    }
+
+    public void upsertAccount(String id, String name, String phone,
+            String password, long balance, String role) {
+        upsertAccount(id, name, phone, password, balance, role, null);
     }
 
     // Compat upsert
-    public synchronized void upsertAccount(String id, String name, String password, double balance, String role) {
+    public void upsertAccount(String id, String name, String password, long balance, String role) {
         upsertAccount(id, name, "000", password, balance, role);
     }
 
-    public synchronized void upsertAccount(String id, String name, String password, double balance) {
+    /**
+     * Helper to ensure an index exists (MySQL has no CREATE INDEX IF NOT EXISTS).
+     */
+    private void ensureIndexExists(String tableName, String indexName, String columns) {
+        String checkSql = "SELECT COUNT(*) FROM information_schema.statistics " +
+                "WHERE table_schema = ? AND table_name = ? AND index_name = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
+            pstmt.setString(1, dbName);
+            pstmt.setString(2, tableName);
+            pstmt.setString(3, indexName);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next() && rs.getInt(1) == 0) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("CREATE INDEX " + indexName + " ON " + tableName + " (" + columns + ")");
+                    System.out.println("Database Migration: Added index [" + indexName + "] to table ["
+                            + tableName + "]");
+                }
+            }
+        } catch (SQLException e) {
+            // Log but don't fail, same as ensureColumnExists
+        }
+    }
+
+    public void upsertAccount(String id, String name, String password, long balance) {
         upsertAccount(id, name, password, balance, "user");
     }
 
@@ -373,13 +663,14 @@ public class Database {
         public String timestamp;
         public String type;
         public String userId;
-        public String amount;
+        public long amount; // Cents
         public String targetId;
         public int nodeId;
         public int lamportClock;
+        public long hlc; // Hybrid logical clock stamp; (hlc, nodeId) orders the cluster log
 
-        public Transaction(int id, String timestamp, String type, String userId, String amount, String targetId,
-                int nodeId, int lamportClock) {
+        public Transaction(int id, String timestamp, String type, String userId, long amount, String targetId,
+                int nodeId, int lamportClock, long hlc) {
             this.id = id;
             this.timestamp = timestamp;
             this.type = type;
@@ -388,115 +679,644 @@ public class Database {
             this.targetId = targetId;
             this.nodeId = nodeId;
             this.lamportClock = lamportClock;
+            this.hlc = hlc;
         }
     }
 
-    public synchronized String logTransaction(String type, String userId, String amount, String targetId,
-            int lamportClock) {
+    /**
+     * Outcome of an atomic balance change.
+     * - status: "OK" or a FAIL:... code (nothing was written).
+     * - timestamp: the ledger row's timestamp (for REPLICATE_LOG).
+     * - newBalance / newTargetBalance: balances after the change, in cents.
+     * - outboxId: the change's replication_outbox row (0 = none written).
+     */
+    public static class BalanceChange {
+        public final String status;
+        public final String timestamp;
+        public final long newBalance;
+        public final long newTargetBalance;
+        public final long outboxId;
+
+        BalanceChange(String status, String timestamp, long newBalance, long newTargetBalance, long outboxId) {
+            this.status = status;
+            this.timestamp = timestamp;
+            this.newBalance = newBalance;
+            this.newTargetBalance = newTargetBalance;
+            this.outboxId = outboxId;
+        }
+
+        static BalanceChange fail(String status) {
+            return new BalanceChange(status, null, NO_ACCOUNT, NO_ACCOUNT, 0);
+        }
+
+        public boolean ok() {
+            return "OK".equals(status);
+        }
+    }
+
+    /**
+     * Outcome of a write committed together with its replication record.
+     * - status: "OK" or a FAIL:... code (nothing was written).
+     * - outboxId: the write's replication_outbox row.
+     */
+    public static class RecordedWrite {
+        public final String status;
+        public final long outboxId;
+
+        RecordedWrite(String status, long outboxId) {
+            this.status = status;
+            this.outboxId = outboxId;
+        }
+
+        static RecordedWrite fail(String status) {
+            return new RecordedWrite(status, 0);
+        }
+
+        public boolean ok() {
+            return "OK".equals(status);
+        }
+    }
+
+    private static final java.time.format.DateTimeFormatter LEDGER_TIME = java.time.format.DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * DEPOSIT: balance += amount and the ledger row, in ONE transaction.
+     *
+     * @param outboxRecord - builds the replication record from the ledger
+     *                     timestamp; written to replication_outbox in the same
+     *                     transaction (null = none)
+     */
+    public BalanceChange deposit(String userId, long amount, int lamportClock, long hlc,
+            java.util.function.Function<String, byte[]> outboxRecord) {
+        return applyChange("DEPOSIT", userId, null, amount, lamportClock, hlc, outboxRecord);
+    }
+
+    /**
+     * WITHDRAW: balance -= amount only if the funds are there
+     * (UPDATE ... WHERE balance >= ?), plus the ledger row, in ONE transaction.
+     */
+    public BalanceChange withdraw(String userId, long amount, int lamportClock, long hlc,
+            java.util.function.Function<String, byte[]> outboxRecord) {
+        return applyChange("WITHDRAW", userId, null, amount, lamportClock, hlc, outboxRecord);
+    }
+
+    /**
+     * TRANSFER: debit (conditional), credit and the ledger row, in ONE transaction.
+     */
+    public BalanceChange transfer(String userId, String targetId, long amount, int lamportClock, long hlc,
+            java.util.function.Function<String, byte[]> outboxRecord) {
+        return applyChange("TRANSFER", userId, targetId, amount, lamportClock, hlc, outboxRecord);
+    }
+
+    /**
+     * Delta UPDATEs plus the ledger INSERT, committed together: either the
+     * balance changes and the log row exists, or neither. Balances are never
+     * read back; the new values come from the cached row plus the delta.
+     * Runs as one unit of a group commit (its own savepoint), so a failed
+     * change is rolled back without touching the rest of the batch.
+     * The replication record commits with it (transactional outbox): if the
+     * change exists, so does the record that will bring it to the peers.
+     */
+    private BalanceChange applyChange(String type, String userId, String targetId, long amount, int lamportClock,
+            long hlc, java.util.function.Function<String, byte[]> outboxRecord) {
         if (conn == null)
-            return null;
-        String sql = "INSERT INTO transactions (type, user_id, amount, target_id, node_id, lamport_clock) VALUES (?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            pstmt.setString(1, type);
-            pstmt.setString(2, userId);
-            pstmt.setString(3, amount);
-            pstmt.setString(4, targetId != null ? targetId : "");
-            pstmt.setInt(5, nodeId);
-            pstmt.setInt(6, lamportClock);
-            pstmt.executeUpdate();
+            return BalanceChange.fail("FAIL:DATABASE_CONNECTION_ERROR");
 
-            // Fetch the generated timestamp to return it for replication
+        BalanceChange result = commitGrouped("Atomic " + type, c -> {
+            // Existence checks and new balances, from the cache where it is current
+            long balance = batchBalance(c, userId);
+            if (balance == NO_ACCOUNT)
+                return BalanceChange.fail("FAIL:USER_NOT_FOUND");
+            long targetBalance = NO_ACCOUNT;
+            if (targetId != null) {
+                targetBalance = batchBalance(c, targetId);
+                if (targetBalance == NO_ACCOUNT)
+                    return BalanceChange.fail("FAIL:RECEIVER_NOT_FOUND");
+            }
+
+            String timestamp = java.time.LocalDateTime.now().format(LEDGER_TIME);
+            boolean credit = "DEPOSIT".equals(type);
+            String sql = credit ? "UPDATE users SET balance = balance + ? WHERE id = ?"
+                    : "UPDATE users SET balance = balance - ? WHERE id = ? AND balance >= ?";
+            java.math.BigDecimal decimalAmount = Money.toDecimal(amount);
+            try (PreparedStatement pstmt = c.prepareStatement(sql)) {
+                pstmt.setBigDecimal(1, decimalAmount);
+                pstmt.setString(2, userId);
+                if (!credit)
+                    pstmt.setBigDecimal(3, decimalAmount);
+                if (pstmt.executeUpdate() == 0)
+                    return BalanceChange.fail(credit ? "FAIL:USER_NOT_FOUND" : "FAIL:INSUFFICIENT_FUNDS");
+            }
+
+            if (targetId != null) {
+                try (PreparedStatement pstmt = c
+                        .prepareStatement("UPDATE users SET balance = balance + ? WHERE id = ?")) {
+                    pstmt.setBigDecimal(1, decimalAmount);
+                    pstmt.setString(2, targetId);
+                    if (pstmt.executeUpdate() == 0)
+                        return BalanceChange.fail("FAIL:RECEIVER_NOT_FOUND");
+                }
+            }
+
+            String logSql = "INSERT INTO transactions (timestamp, type, user_id, amount, target_id, node_id, lamport_clock, hlc) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+            try (PreparedStatement pstmt = c.prepareStatement(logSql)) {
+                pstmt.setString(1, timestamp);
+                pstmt.setString(2, type);
+                pstmt.setString(3, userId);
+                pstmt.setBigDecimal(4, decimalAmount);
+                pstmt.setString(5, targetId != null ? targetId : "");
+                pstmt.setInt(6, nodeId);
+                pstmt.setInt(7, lamportClock);
+                pstmt.setLong(8, hlc);
+                pstmt.executeUpdate();
+            }
+            // Our own operation: already in our balances when peers echo it back
+            markApplied(c, nodeId, hlc, userId);
+            if (targetId != null)
+                markApplied(c, nodeId, hlc, targetId);
+            long outboxId = (outboxRecord != null) ? insertOutbox(c, outboxRecord.apply(timestamp)) : 0;
+
+            long newBalance = credit ? balance + amount : balance - amount;
+            long newTargetBalance = (targetId != null) ? targetBalance + amount : NO_ACCOUNT;
+            batchWrites.add(userId);
+            committer.afterCommit(() -> accountCache.updateBalance(userId, newBalance));
+            if (targetId != null) {
+                batchWrites.add(targetId);
+                committer.afterCommit(() -> accountCache.updateBalance(targetId, newTargetBalance));
+            }
+            return new BalanceChange("OK", timestamp, newBalance, newTargetBalance, outboxId);
+        }, BalanceChange::ok, null);
+
+        if (result == null) {
+            accountCache.invalidate(userId);
+            if (targetId != null)
+                accountCache.invalidate(targetId);
+            return BalanceChange.fail("FAIL:SQL_ERROR");
+        }
+        if (result.ok()) {
+            System.out.println("📝 Database: " + type + " " + Money.format(amount) + " for " + userId
+                    + (targetId != null ? " -> " + targetId : "") + " committed with ledger row at "
+                    + result.timestamp);
+        }
+        return result;
+    }
+
+    /**
+     * Apply an operation replicated from originNode (REPLICATE_OP or a sync
+     * ledger row) exactly once: each account leg's delta is added only if
+     * applied_ops doesn't have it yet, and the ledger row is inserted if
+     * missing. Duplicates, replays and out-of-order arrivals are harmless.
+     * All-or-nothing: every leg and the ledger row commit together. If an
+     * account doesn't exist here yet, nothing is applied (never half a
+     * transfer) and a later replay (sync) applies it once the account has
+     * arrived.
+     *
+     * @return number of balance legs applied by this call (0 = already
+     *         applied), or a negative value if nothing was applied: an
+     *         account is missing, the write failed, or REJECTED (it never
+     *         can succeed)
+     */
+    public int applyOperation(String timestamp, String type, String userId, long amount,
+            String targetId, int originNode, int lamportClock, long hlc) {
+        if (conn == null)
+            return FAILED;
+        if (hlc <= 0)
+            return 0;
+        int applied = commitGrouped("Apply Operation",
+                operationUnit(timestamp, type, userId, amount, targetId, originNode, lamportClock, hlc),
+                Database::operationApplied, FAILED, REJECTED);
+        if (applied == DEFERRED)
+            System.out.println("⏸ Database: " + type + " from Node " + originNode + " deferred (account not here yet)");
+        if (applied > 0)
+            System.out.println("📥 Database: Applied " + type + " " + Money.format(amount) + " from Node " + originNode
+                    + " ("
+                    + applied + " account(s))");
+        return applied;
+    }
+
+    /**
+     * applyOperation for a whole sync ledger (stamped rows only). All rows
+     * are queued before waiting, so they share group commits.
+     *
+     * @return number of balance legs applied
+     */
+    public int applyOperations(java.util.List<Transaction> ops) {
+        if (conn == null)
+            return 0;
+        java.util.List<java.util.concurrent.CompletableFuture<Integer>> pending = new java.util.ArrayList<>();
+        for (Transaction t : ops) {
+            if (t.hlc <= 0)
+                continue;
+            pending.add(committer.submit(operationUnit(t.timestamp, t.type, t.userId, t.amount, t.targetId,
+                    t.nodeId, t.lamportClock, t.hlc), Database::operationApplied));
+        }
+        int applied = 0;
+        for (java.util.concurrent.CompletableFuture<Integer> f : pending) {
+            try {
+                applied += Math.max(f.join(), 0);
+            } catch (CompletionException e) {
+                Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                System.err.println("Apply Operation Error: " + cause.getMessage());
+            }
+        }
+        return applied;
+    }
+
+    private GroupCommitter.Work<Integer> operationUnit(String timestamp, String type, String userId, long amount,
+            String targetId, int originNode, int lamportClock, long hlc) {
+        String[] legAccounts;
+        long[] legDeltas;
+        switch (type) {
+            case "DEPOSIT":
+                legAccounts = new String[] { userId };
+                legDeltas = new long[] { amount };
+                break;
+            case "WITHDRAW":
+                legAccounts = new String[] { userId };
+                legDeltas = new long[] { -amount };
+                break;
+            case "TRANSFER":
+                legAccounts = new String[] { userId, targetId };
+                legDeltas = new long[] { -amount, amount };
+                break;
+            default:
+                legAccounts = new String[0];
+                legDeltas = new long[0];
+        }
+
+        String logSql = "INSERT INTO transactions (timestamp, type, user_id, amount, target_id, node_id, lamport_clock, hlc) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        return c -> {
+            boolean[] legApplied = new boolean[legAccounts.length];
+            int legs = 0;
+            for (int i = 0; i < legAccounts.length; i++) {
+                if (!markApplied(c, originNode, hlc, legAccounts[i]))
+                    continue; // Already in this balance
+                try (PreparedStatement pstmt = c
+                        .prepareStatement("UPDATE users SET balance = balance + ? WHERE id = ?")) {
+                    pstmt.setBigDecimal(1, Money.toDecimal(legDeltas[i]));
+                    pstmt.setString(2, legAccounts[i]);
+                    if (pstmt.executeUpdate() == 0)
+                        return DEFERRED; // Rolled back to the unit's savepoint
+                }
+                legApplied[i] = true;
+                legs++;
+            }
+            if (!transactionExists(originNode, hlc)) {
+                try (PreparedStatement pstmt = c.prepareStatement(logSql)) {
+                    pstmt.setString(1, timestamp);
+                    pstmt.setString(2, type);
+                    pstmt.setString(3, userId);
+                    pstmt.setBigDecimal(4, Money.toDecimal(amount));
+                    pstmt.setString(5, targetId != null ? targetId : "");
+                    pstmt.setInt(6, originNode);
+                    pstmt.setInt(7, lamportClock);
+                    pstmt.setLong(8, hlc);
+                    pstmt.executeUpdate();
+                }
+            }
+            // Cache once committed, with every leg, so readers never see half an operation
+            for (int i = 0; i < legAccounts.length; i++) {
+                if (legApplied[i]) {
+                    String account = legAccounts[i];
+                    long delta = legDeltas[i];
+                    batchWrites.add(account);
+                    committer.afterCommit(() -> accountCache.addToBalance(account, delta));
+                }
+            }
+            return legs;
+        };
+    }
+
+    /**
+     * Balance as a unit of the open batch sees it (committer thread only), or
+     * NO_ACCOUNT. The cached row is current unless an earlier unit of this
+     * batch wrote the account; then MySQL is read (and not cached: the row
+     * includes writes that are not committed yet).
+     */
+    private long batchBalance(Connection c, String id) throws SQLException {
+        if (!batchWrites.contains(id)) {
+            Account acc = getAccount(id);
+            return (acc != null) ? acc.balance : NO_ACCOUNT;
+        }
+        try (PreparedStatement pstmt = c.prepareStatement("SELECT balance FROM users WHERE id = ?")) {
+            pstmt.setString(1, id);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? Money.fromDecimal(rs.getBigDecimal(1)) : NO_ACCOUNT;
+        }
+    }
+
+    // operationUnit result: an account is missing, nothing was applied
+    private static final int DEFERRED = -1;
+    // applyOperation result: the write or its batch failed
+    private static final int FAILED = -2;
+    // Replicated write result: bad data or a constraint, retrying can't help
+    public static final int REJECTED = -3;
+
+    private static boolean operationApplied(Integer legs) {
+        return legs != DEFERRED;
+    }
+
+    /**
+     * Record an (operation, account) leg as applied.
+     *
+     * @return false if it already was
+     */
+    private boolean markApplied(Connection c, int originNode, long hlc, String accountId) throws SQLException {
+        if (accountId == null || accountId.isEmpty())
+            return false;
+        String sql = "INSERT IGNORE INTO applied_ops (origin_node, hlc, account_id) VALUES (?, ?, ?)";
+        try (PreparedStatement pstmt = c.prepareStatement(sql)) {
+            pstmt.setInt(1, originNode);
+            pstmt.setLong(2, hlc);
+            pstmt.setString(3, accountId);
+            return pstmt.executeUpdate() > 0;
+        }
+    }
+
+    // =================================================================
+    // REPLICATION OUTBOX
+    // =================================================================
+
+    /**
+     * One replication_outbox row.
+     */
+    public static class OutboxRecord {
+        public final long id;
+        public final byte[] payload;
+
+        OutboxRecord(long id, byte[] payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+
+    private long insertOutbox(Connection c, byte[] payload) throws SQLException {
+        String sql = "INSERT INTO replication_outbox (payload) VALUES (?)";
+        try (PreparedStatement pstmt = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setBytes(1, payload);
+            pstmt.executeUpdate();
             try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    int lastId = rs.getInt(1);
-                    try (Statement stmt = conn.createStatement();
-                            ResultSet rsTime = stmt
-                                    .executeQuery("SELECT timestamp FROM transactions WHERE id = " + lastId)) {
-                        if (rsTime.next()) {
-                            String ts = rsTime.getString("timestamp");
-                            System.out.println("📝 Database: Logged " + type + " for " + userId + " at " + ts);
-                            return ts;
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Records after afterId, oldest first.
+     */
+    public java.util.List<OutboxRecord> readOutbox(long afterId, int limit) {
+        java.util.List<OutboxRecord> list = new java.util.ArrayList<>();
+        if (conn == null)
+            return list;
+        String sql = "SELECT id, payload FROM replication_outbox WHERE id > ? ORDER BY id LIMIT ?";
+        writeLock.lock();
+        try {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setLong(1, afterId);
+                pstmt.setInt(2, limit);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next())
+                    list.add(new OutboxRecord(rs.getLong("id"), rs.getBytes("payload")));
+            } catch (SQLException e) {
+                System.err.println("Outbox Read Error: " + e.getMessage());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return list;
+    }
+
+    /**
+     * Lowest and highest outbox ids still stored ({0, 0} if empty).
+     */
+    public long[] outboxRange() {
+        if (conn == null)
+            return new long[] { 0, 0 };
+        writeLock.lock();
+        try {
+            try (Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT MIN(id), MAX(id) FROM replication_outbox")) {
+                if (rs.next())
+                    return new long[] { rs.getLong(1), rs.getLong(2) };
+            } catch (SQLException e) {
+                System.err.println("Outbox Read Error: " + e.getMessage());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return new long[] { 0, 0 };
+    }
+
+    public java.util.Map<Integer, Long> loadReplicationCursors() {
+        java.util.Map<Integer, Long> cursors = new java.util.HashMap<>();
+        if (conn == null)
+            return cursors;
+        writeLock.lock();
+        try {
+            try (Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT peer_id, acked_id FROM replication_cursors")) {
+                while (rs.next())
+                    cursors.put(rs.getInt("peer_id"), rs.getLong("acked_id"));
+            } catch (SQLException e) {
+                System.err.println("Cursor Read Error: " + e.getMessage());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return cursors;
+    }
+
+    /**
+     * Persist a peer's cursor. Never moves it backwards.
+     */
+    public void saveReplicationCursor(int peerId, long ackedId) {
+        if (conn == null)
+            return;
+        String sql = "INSERT INTO replication_cursors (peer_id, acked_id) VALUES (?, ?) "
+                + "ON DUPLICATE KEY UPDATE acked_id = GREATEST(acked_id, VALUES(acked_id))";
+        commitGrouped("Cursor Save", c -> {
+            try (PreparedStatement pstmt = c.prepareStatement(sql)) {
+                pstmt.setInt(1, peerId);
+                pstmt.setLong(2, ackedId);
+                return pstmt.executeUpdate();
+            }
+        }, r -> true, 0);
+    }
+
+    /**
+     * Drop records every peer has (upToId = lowest cursor).
+     */
+    public void pruneOutbox(long upToId) {
+        if (conn == null || upToId <= 0)
+            return;
+        commitGrouped("Outbox Prune", c -> {
+            try (PreparedStatement pstmt = c.prepareStatement("DELETE FROM replication_outbox WHERE id <= ?")) {
+                pstmt.setLong(1, upToId);
+                return pstmt.executeUpdate();
+            }
+        }, r -> true, 0);
+    }
+
+    public String logTransaction(String type, String userId, long amount, String targetId,
+            int lamportClock, long hlc) {
+        if (conn == null)
+            return null;
+        String sql = "INSERT INTO transactions (type, user_id, amount, target_id, node_id, lamport_clock, hlc) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        String ts = commitGrouped("Log", c -> {
+            try (PreparedStatement pstmt = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                pstmt.setString(1, type);
+                pstmt.setString(2, userId);
+                pstmt.setBigDecimal(3, Money.toDecimal(amount));
+                pstmt.setString(4, targetId != null ? targetId : "");
+                pstmt.setInt(5, nodeId);
+                pstmt.setInt(6, lamportClock);
+                pstmt.setLong(7, hlc);
+                pstmt.executeUpdate();
+
+                // Fetch the generated timestamp to return it for replication
+                try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                    if (rs.next()) {
+                        int lastId = rs.getInt(1);
+                        try (Statement stmt = c.createStatement();
+                                ResultSet rsTime = stmt
+                                        .executeQuery("SELECT timestamp FROM transactions WHERE id = " + lastId)) {
+                            if (rsTime.next())
+                                return rsTime.getString("timestamp");
                         }
                     }
                 }
             }
-        } catch (SQLException e) {
-            System.err.println("Log Error: " + e.getMessage());
-        }
-        return null;
+            return null;
+        }, r -> true, null);
+        if (ts != null)
+            System.out.println("📝 Database: Logged " + type + " for " + userId + " at " + ts);
+        return ts;
     }
 
     public java.util.List<Transaction> getAllTransactions() {
         java.util.List<Transaction> list = new java.util.ArrayList<>();
         if (conn == null)
             return list;
-        String sql = "SELECT * FROM transactions ORDER BY timestamp DESC LIMIT 10000"; // Increased limit for better
-                                                                                       // sync
-        try (Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(sql)) {
-            while (rs.next()) {
-                list.add(new Transaction(
-                        rs.getInt("id"),
-                        rs.getString("timestamp"),
-                        rs.getString("type"),
-                        rs.getString("user_id"),
-                        rs.getString("amount"),
-                        rs.getString("target_id"),
-                        rs.getInt("node_id"),
-                        rs.getInt("lamport_clock")));
+        // Cluster order: (hlc, node_id) is the same on every node, newest first.
+        // Rows from before HLC stamping (hlc = 0) follow, by local timestamp.
+        String sql = "SELECT * FROM transactions ORDER BY hlc DESC, node_id DESC, timestamp DESC LIMIT 10000";
+        writeLock.lock();
+        try {
+            try (Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    list.add(new Transaction(
+                            rs.getInt("id"),
+                            rs.getString("timestamp"),
+                            rs.getString("type"),
+                            rs.getString("user_id"),
+                            Money.fromDecimal(rs.getBigDecimal("amount")),
+                            rs.getString("target_id"),
+                            rs.getInt("node_id"),
+                            rs.getInt("lamport_clock"),
+                            rs.getLong("hlc")));
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } finally {
+            writeLock.unlock();
         }
         return list;
     }
 
+    /**
+     * Check if a stamped transaction already exists: (node_id, hlc) is unique
+     * per row, so one indexed lookup is enough.
+     */
+    public boolean transactionExists(int nodeId, long hlc) {
+        if (conn == null)
+            return false;
+        String sql = "SELECT id FROM transactions WHERE hlc = ? AND node_id = ?";
+        writeLock.lock();
+        try {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setLong(1, hlc);
+                pstmt.setInt(2, nodeId);
+                ResultSet rs = pstmt.executeQuery();
+                return rs.next();
+            } catch (SQLException e) {
+                return false;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     /**
      * Check if a transaction already exists to avoid duplicates during sync.
-     * Uses a combination of timestamp, user, type and lamport clock.
+     * Uses a combination of timestamp, user, type and lamport clock
+     * (rows from older nodes without an HLC stamp).
      */
     public boolean transactionExists(String timestamp, String userId, String type, int lamportClock) {
         if (conn == null)
             return false;
         String sql = "SELECT id FROM transactions WHERE timestamp = ? AND user_id = ? AND type = ? AND lamport_clock = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, timestamp);
-            pstmt.setString(2, userId);
-            pstmt.setString(3, type);
-            pstmt.setInt(4, lamportClock);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
-        } catch (SQLException e) {
-            return false;
+        writeLock.lock();
+        try {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, timestamp);
+                pstmt.setString(2, userId);
+                pstmt.setString(3, type);
+                pstmt.setInt(4, lamportClock);
+                ResultSet rs = pstmt.executeQuery();
+                return rs.next();
+            } catch (SQLException e) {
+                return false;
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
     /**
-     * Import a transaction from a peer during sync.
+     * Import a ledger row whose balance effect arrived separately (legacy
+     * REPLICATE_LOG + absolute REPLICATE_UPDATE, or unstamped sync rows).
+     * Stamped rows record their legs as applied, so the operation is not
+     * applied a second time if it is replayed later.
+     *
+     * @return 1 if imported, 0 if the row was already there, a negative
+     *         value if the write failed (REJECTED if it never can succeed)
      */
-    public synchronized void importTransaction(String timestamp, String type, String userId, String amount,
-            String targetId, int nodeId, int lamportClock) {
+    public int importTransaction(String timestamp, String type, String userId, long amount,
+            String targetId, int nodeId, int lamportClock, long hlc) {
         if (conn == null)
-            return;
+            return FAILED;
 
-        if (transactionExists(timestamp, userId, type, lamportClock)) {
-            return;
-        }
-
-        String sql = "INSERT INTO transactions (timestamp, type, user_id, amount, target_id, node_id, lamport_clock) VALUES (?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, timestamp);
-            pstmt.setString(2, type);
-            pstmt.setString(3, userId);
-            pstmt.setString(4, amount);
-            pstmt.setString(5, targetId != null ? targetId : "");
-            pstmt.setInt(6, nodeId);
-            pstmt.setInt(7, lamportClock);
-            pstmt.executeUpdate();
+        String sql = "INSERT INTO transactions (timestamp, type, user_id, amount, target_id, node_id, lamport_clock, hlc) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        int imported = commitGrouped("Import Transaction", c -> {
+            if (hlc > 0) {
+                markApplied(c, nodeId, hlc, userId);
+                if ("TRANSFER".equals(type))
+                    markApplied(c, nodeId, hlc, targetId);
+            }
+            // Checked inside the batch: an earlier unit may have imported the same row
+            boolean exists = (hlc > 0) ? transactionExists(nodeId, hlc)
+                    : transactionExists(timestamp, userId, type, lamportClock);
+            if (exists)
+                return 0;
+            try (PreparedStatement pstmt = c.prepareStatement(sql)) {
+                pstmt.setString(1, timestamp);
+                pstmt.setString(2, type);
+                pstmt.setString(3, userId);
+                pstmt.setBigDecimal(4, Money.toDecimal(amount));
+                pstmt.setString(5, targetId != null ? targetId : "");
+                pstmt.setInt(6, nodeId);
+                pstmt.setInt(7, lamportClock);
+                pstmt.setLong(8, hlc);
+                pstmt.executeUpdate();
+            }
+            return 1;
+        }, r -> true, FAILED, REJECTED);
+        if (imported > 0)
             System.out.println("📥 Database: Imported transaction " + type + " for " + userId + " at " + timestamp);
-        } catch (SQLException e) {
-            System.err.println("Import Transaction Error: " + e.getMessage());
-        }
+        return imported;
     }
 
     public java.util.List<Account> getAllUsers() {
@@ -504,67 +1324,147 @@ public class Database {
         if (conn == null)
             return list;
         String sql = "SELECT * FROM users";
-        try (Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(sql)) {
-            while (rs.next()) {
-                Account acc = new Account(
-                        rs.getString("id"),
-                        rs.getString("name"),
-                        rs.getString("password"),
-                        rs.getDouble("balance"),
-                        rs.getString("role"));
-                acc.phoneNumber = rs.getString("phone_number");
-                list.add(acc);
+        writeLock.lock();
+        try {
+            try (Statement stmt = conn.createStatement();
+                    ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    Account acc = new Account(
+                            rs.getString("id"),
+                            rs.getString("name"),
+                            rs.getString("password"),
+                            Money.fromDecimal(rs.getBigDecimal("balance")),
+                            rs.getString("role"));
+                    acc.phoneNumber = rs.getString("phone_number");
+                    list.add(acc);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        } finally {
+            writeLock.unlock();
         }
         return list;
     }
 
+    /**
+     * Accounts and ledger read together for a SYNC_RESPONSE. Every write on
+     * this node holds writeLock, so the balances match the ledger exactly:
+     * a peer that creates an account from it can trust which operations the
+     * balance already includes.
+     */
+    public static class SyncSnapshot {
+        public final java.util.List<Account> accounts;
+        public final java.util.List<Transaction> transactions;
+
+        SyncSnapshot(java.util.List<Account> accounts, java.util.List<Transaction> transactions) {
+            this.accounts = accounts;
+            this.transactions = transactions;
+        }
+    }
+
+    public SyncSnapshot readSyncSnapshot() {
+        writeLock.lock();
+        try {
+            return new SyncSnapshot(getAllUsers(), getAllTransactions());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     public boolean verifyForgetDetails(String id, String fullName, String phone) {
         if (conn == null)
             return false;
         String sql = "SELECT * FROM users WHERE id = ? AND name = ? AND phone_number = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, id);
-            pstmt.setString(2, fullName);
-            pstmt.setString(3, phone);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
+        writeLock.lock();
+        try {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, id);
+                pstmt.setString(2, fullName);
+                pstmt.setString(3, phone);
+                ResultSet rs = pstmt.executeQuery();
+                return rs.next();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
-    public synchronized boolean updatePassword(String id, String newPassword) {
-        if (conn == null)
-            return false;
-        String sql = "UPDATE users SET password = ? WHERE id = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, PasswordUtils.hash(newPassword));
-            pstmt.setString(2, id);
-            pstmt.executeUpdate();
-            return true;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
+    public boolean updatePassword(String id, String newPassword) {
+        writeLock.lock();
+        try {
+            if (conn == null)
+                return false;
+            String sql = "UPDATE users SET password = ? WHERE id = ?";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                String passHash = PasswordUtils.hash(newPassword);
+                pstmt.setString(1, passHash);
+                pstmt.setString(2, id);
+                pstmt.executeUpdate();
+                accountCache.updatePassword(id, passHash);
+                return true;
+            } catch (SQLException e) {
+                accountCache.invalidate(id);
+                e.printStackTrace();
+                return false;
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
-    public synchronized boolean updatePasswordWithHash(String id, String passHash) {
+    /**
+     * Set a new password hash and store its replication record in one unit
+     * of a group commit, like registerAccount.
+     */
+    public RecordedWrite resetPassword(String id, String passHash, byte[] outboxRecord) {
         if (conn == null)
-            return false;
+            return RecordedWrite.fail("FAIL:DATABASE_CONNECTION_ERROR");
+
         String sql = "UPDATE users SET password = ? WHERE id = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, passHash);
-            pstmt.setString(2, id);
-            pstmt.executeUpdate();
-            return true;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
+        RecordedWrite result = commitGrouped("Reset Password", c -> {
+            try (PreparedStatement pstmt = c.prepareStatement(sql)) {
+                pstmt.setString(1, passHash);
+                pstmt.setString(2, id);
+                if (pstmt.executeUpdate() == 0)
+                    return RecordedWrite.fail("FAIL:USER_NOT_FOUND");
+            }
+            long outboxId = insertOutbox(c, outboxRecord);
+            batchWrites.add(id);
+            committer.afterCommit(() -> accountCache.updatePassword(id, passHash));
+            return new RecordedWrite("OK", outboxId);
+        }, RecordedWrite::ok, RecordedWrite.fail("FAIL:SQL_ERROR"), RecordedWrite.fail("FAIL:INVALID_DATA"));
+        if (!result.ok())
+            accountCache.invalidate(id);
+        return result;
+    }
+
+    /**
+     * @return 1 if written, a negative value if the write failed (REJECTED
+     *         if it never can succeed)
+     */
+    public int updatePasswordWithHash(String id, String passHash) {
+        writeLock.lock();
+        try {
+            if (conn == null)
+                return FAILED;
+            String sql = "UPDATE users SET password = ? WHERE id = ?";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, passHash);
+                pstmt.setString(2, id);
+                pstmt.executeUpdate();
+                accountCache.updatePassword(id, passHash);
+                return 1;
+            } catch (SQLException e) {
+                accountCache.invalidate(id);
+                e.printStackTrace();
+                return isPermanent(e) ? REJECTED : FAILED;
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 }
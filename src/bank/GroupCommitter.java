@@ -0,0 +1,230 @@
+package bank;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * GroupCommitter
+ *
+ * Group commit for the node's single MySQL connection.
+ * - Callers submit a unit of work. One committer thread runs whatever has
+ * queued up (up to maxBatch) in ONE transaction, so concurrent operations
+ * share a single commit (and fsync) instead of paying one each.
+ * - Each unit runs behind its own savepoint: a unit that fails, or whose
+ * result says "don't keep" (e.g. insufficient funds), is rolled back alone
+ * and the rest of the batch still commits.
+ * - A caller's future completes only after the batch's COMMIT has returned,
+ * i.e. once its write is durable. If the commit fails, every unit in the
+ * batch fails.
+ * - Side effects that must only show committed state (cache updates) are
+ * registered with afterCommit() and run once the COMMIT has returned.
+ */
+public class GroupCommitter {
+
+    /**
+     * One unit of work, run on the committer thread inside the open transaction.
+     */
+    public interface Work<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    private final Connection conn;
+    private final ReentrantLock connLock; // Shared with Database's other users of conn
+    private final Runnable onBatchEnd; // Drop per-batch state (after commit or rollback)
+    private final int maxBatch;
+    private final long lingerMs;
+    private final LinkedBlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+
+    private volatile long batches;
+    private volatile long units;
+    private Pending<?> running; // Committer thread only: the unit being run
+
+    public GroupCommitter(String name, Connection conn, ReentrantLock connLock, Runnable onBatchEnd,
+            int maxBatch, long lingerMs) {
+        this.conn = conn;
+        this.connLock = connLock;
+        this.onBatchEnd = onBatchEnd;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerMs = lingerMs;
+        Thread t = new Thread(this::run, name + "-GroupCommit");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queue work for the next batch.
+     *
+     * @param keep - false for a result means "roll my writes back" (the
+     *             future still completes with that result)
+     */
+    public <T> CompletableFuture<T> submit(Work<T> work, Predicate<? super T> keep) {
+        Pending<T> pending = new Pending<>(work, keep);
+        queue.add(pending);
+        return pending.future;
+    }
+
+    public <T> CompletableFuture<T> submit(Work<T> work) {
+        return submit(work, result -> true);
+    }
+
+    /**
+     * From inside a Work: run action once the batch has committed, before
+     * any caller's future completes. Dropped if the unit is rolled back or
+     * the batch fails.
+     */
+    public void afterCommit(Runnable action) {
+        Pending<?> unit = running;
+        if (unit == null)
+            throw new IllegalStateException("afterCommit outside a unit of work");
+        unit.afterCommit.add(action);
+    }
+
+    /**
+     * Average units per commit so far.
+     */
+    public double averageBatchSize() {
+        long b = batches;
+        return (b == 0) ? 0.0 : (double) units / b;
+    }
+
+    private void run() {
+        List<Pending<?>> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                if (lingerMs > 0 && queue.isEmpty()) {
+                    // Give operations finishing right now a chance to share the commit
+                    Pending<?> next = queue.poll(lingerMs, TimeUnit.MILLISECONDS);
+                    if (next != null)
+                        batch.add(next);
+                }
+                queue.drainTo(batch, maxBatch - batch.size());
+                commitBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("GroupCommit: unexpected error: " + e.getMessage());
+                for (Pending<?> p : batch)
+                    p.future.completeExceptionally(e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commitBatch(List<Pending<?>> batch) {
+        Exception failure = null;
+        boolean committed = false;
+        connLock.lock();
+        try {
+            conn.setAutoCommit(false);
+            for (Pending<?> p : batch) {
+                running = p;
+                p.runInBatch(conn);
+            }
+            running = null;
+            conn.commit();
+            committed = true;
+            // Still under the lock: a reader loading a row from MySQL now sees
+            // it with every action applied
+            for (Pending<?> p : batch)
+                p.runAfterCommit();
+        } catch (SQLException | RuntimeException e) {
+            failure = e;
+        } finally {
+            running = null;
+            if (!committed) {
+                // Before autocommit is restored: turning it back on would commit the open transaction
+                try {
+                    conn.rollback();
+                } catch (SQLException ignored) {
+                    // Connection is broken; nothing was committed
+                }
+            }
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                System.err.println("GroupCommit: could not restore autocommit: " + e.getMessage());
+            }
+            connLock.unlock();
+        }
+
+        if (!committed) {
+            System.err.println("GroupCommit: batch of " + batch.size() + " failed: " + failure.getMessage());
+            onBatchEnd.run();
+            for (Pending<?> p : batch)
+                p.future.completeExceptionally(failure);
+            return;
+        }
+
+        onBatchEnd.run();
+        batches++;
+        units += batch.size();
+        // Durable: acknowledge every caller in the batch
+        for (Pending<?> p : batch)
+            p.complete();
+    }
+
+    private static final class Pending<T> {
+        final Work<T> work;
+        final Predicate<? super T> keep;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final List<Runnable> afterCommit = new ArrayList<>(2);
+        T result;
+        Exception error;
+
+        Pending(Work<T> work, Predicate<? super T> keep) {
+            this.work = work;
+            this.keep = keep;
+        }
+
+        /**
+         * Run behind a savepoint. A unit that throws (SQL or runtime, e.g. a
+         * bad amount) is rolled back alone, half-done writes included. Only a
+         * failed savepoint rollback escapes (the transaction is then unusable
+         * and the whole batch fails).
+         */
+        void runInBatch(Connection conn) throws SQLException {
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+                result = work.run(conn);
+                if (!keep.test(result)) {
+                    afterCommit.clear();
+                    conn.rollback(savepoint);
+                }
+            } catch (SQLException | RuntimeException e) {
+                error = e;
+                afterCommit.clear();
+                conn.rollback(savepoint);
+            }
+            conn.releaseSavepoint(savepoint);
+        }
+
+        void runAfterCommit() {
+            for (Runnable action : afterCommit) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    // Already committed: the unit still succeeded
+                    System.err.println("GroupCommit: after-commit action failed: " + e.getMessage());
+                }
+            }
+        }
+
+        void complete() {
+            if (error != null)
+                future.completeExceptionally(error);
+            else
+                future.complete(result);
+        }
+    }
+}
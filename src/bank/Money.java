@@ -0,0 +1,139 @@
+package bank;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Money
+ *
+ * Amounts as a primitive long count of cents (minor units).
+ * - Balances, amounts and their arithmetic are exact: no binary floating
+ * point, so every replica that applies the same operations ends up with
+ * the same balance to the cent.
+ * - parse() and appendTo() work on characters directly, so the hot path
+ * (request amount -> critical section -> wire -> balance) allocates nothing
+ * for the number itself.
+ * - Text form is plain decimal with two places ("12.50"). That is what goes
+ * on the wire and into JSON, so peers and clients that still read a decimal
+ * number keep working.
+ * - MySQL stores DECIMAL(19,2); toDecimal/fromDecimal convert at the JDBC
+ * boundary only.
+ */
+public final class Money {
+
+    public static final long CENTS_PER_UNIT = 100;
+    private static final int SCALE = 2;
+    private static final long MAX_UNITS = Long.MAX_VALUE / CENTS_PER_UNIT;
+
+    private Money() {
+    }
+
+    /**
+     * Parse a decimal amount ("12", "12.5", "-0.05") into cents.
+     * Extra decimals are accepted only when they are zeros ("12.500").
+     * Legacy exponent forms ("1.0E7", written by older nodes) are accepted.
+     *
+     * @throws NumberFormatException for anything else, or sub-cent values
+     */
+    public static long parse(CharSequence s) {
+        if (s == null)
+            throw new NumberFormatException("null amount");
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ')
+            start++;
+        while (end > start && s.charAt(end - 1) <= ' ')
+            end--;
+        if (start == end)
+            throw new NumberFormatException("empty amount");
+
+        boolean negative = false;
+        char first = s.charAt(start);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            start++;
+        }
+
+        long units = 0;
+        long cents = 0;
+        int digits = 0;
+        int fraction = -1; // Digits after the point; -1 = no point yet
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int d = c - '0';
+                if (fraction < 0) {
+                    if (units > (MAX_UNITS - d) / 10)
+                        throw new NumberFormatException("amount too large: " + s);
+                    units = units * 10 + d;
+                } else if (fraction < SCALE) {
+                    cents = cents * 10 + d;
+                    fraction++;
+                } else if (d != 0) {
+                    throw new NumberFormatException("amount below one cent: " + s);
+                }
+                digits++;
+            } else if (c == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (c == 'E' || c == 'e') {
+                return parseSlow(s.toString().trim());
+            } else {
+                throw new NumberFormatException("not an amount: " + s);
+            }
+        }
+        if (digits == 0)
+            throw new NumberFormatException("not an amount: " + s);
+        for (int f = Math.max(fraction, 0); f < SCALE; f++)
+            cents *= 10;
+        long value = units * CENTS_PER_UNIT + cents;
+        if (value < 0)
+            throw new NumberFormatException("amount too large: " + s);
+        return negative ? -value : value;
+    }
+
+    private static long parseSlow(String s) {
+        try {
+            return new BigDecimal(s).setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("not a cent amount: " + s);
+        }
+    }
+
+    /**
+     * Append cents as "12.50" without building intermediate strings.
+     */
+    public static StringBuilder appendTo(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+            if (cents == Long.MIN_VALUE) // No positive counterpart
+                return sb.append(-(cents / CENTS_PER_UNIT)).append(".08");
+            cents = -cents;
+        }
+        long fraction = cents % CENTS_PER_UNIT;
+        sb.append(cents / CENTS_PER_UNIT).append('.');
+        if (fraction < 10)
+            sb.append('0');
+        return sb.append(fraction);
+    }
+
+    public static String format(long cents) {
+        return appendTo(new StringBuilder(24), cents).toString();
+    }
+
+    // =================================================================
+    // JDBC (DECIMAL(19,2) columns)
+    // =================================================================
+
+    public static BigDecimal toDecimal(long cents) {
+        return BigDecimal.valueOf(cents, SCALE);
+    }
+
+    /**
+     * @return cents; null (SQL NULL) reads as 0
+     */
+    public static long fromDecimal(BigDecimal value) {
+        if (value == null)
+            return 0;
+        return value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+}
@@ -0,0 +1,388 @@
+package bank;
+
+import algorithm.PeerMessage;
+import algorithm.WireCodec;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * ReplicationOutbox
+ *
+ * Durable replication: every record sent to the peers is first stored in the
+ * local replication_outbox table, and each peer has a delivery cursor (the
+ * highest record it has applied) in replication_cursors.
+ * - A peer that keeps up is fed straight onto its ReplicationStreams stream
+ * as records are published ("live").
+ * - A peer that went down, overflowed its stream queue, or was down when
+ * this node restarted is "lagging": it is fed from the table instead,
+ * repl.replayBatch records at a time starting after its cursor, until it has
+ * caught up and goes live again. So a rejoining peer gets exactly what it
+ * missed instead of a full-state transfer.
+ * - Replay attempts to an unreachable peer back off exponentially between
+ * repl.replayMinBackoffMs and repl.replayMaxBackoffMs. The backoff is dropped
+ * as soon as the failure detector sees the peer again (checked every tick),
+ * since REPLYs to it wait for its replay.
+ * - Records every peer has applied are pruned. The table is also capped at
+ * repl.outboxMaxRows; a peer that falls behind that is left to the periodic
+ * full sync.
+ * - Cursors only cover records that were published: an operation that has
+ * committed its record but not published it yet holds them back (see
+ * reserve), so a crash never skips a record.
+ */
+public class ReplicationOutbox {
+
+    public static final long TICK_MS = 100;
+    private static final int MAX_WAITERS = 10_000; // Per peer
+
+    private final Database db;
+    private final BiFunction<Integer, PeerMessage, CompletableFuture<Boolean>> stream;
+    private final IntPredicate isAvailable;
+    private final int batchSize;
+    private final long minBackoffMs;
+    private final long maxBackoffMs;
+    private final long maxRows;
+    private final ConcurrentHashMap<Integer, Peer> peers = new ConcurrentHashMap<>();
+
+    // Writers between reserve() and release(), with the highest published id when they started
+    private final ConcurrentHashMap<Long, Long> openWrites = new ConcurrentHashMap<>();
+    private final AtomicLong nextTicket = new AtomicLong();
+    private final AtomicLong highestPublished = new AtomicLong();
+    private long prunedUpTo; // Tick thread only
+
+    public ReplicationOutbox(Database db, int ownerId, Collection<Integer> peerIds,
+            BiFunction<Integer, PeerMessage, CompletableFuture<Boolean>> stream, IntPredicate isAvailable,
+            int batchSize, long minBackoffMs, long maxBackoffMs, long maxRows) {
+        this.db = db;
+        this.stream = stream;
+        this.isAvailable = isAvailable;
+        this.batchSize = Math.max(1, batchSize);
+        this.minBackoffMs = Math.max(1, minBackoffMs);
+        this.maxBackoffMs = Math.max(this.minBackoffMs, maxBackoffMs);
+        this.maxRows = Math.max(1, maxRows);
+
+        long[] range = db.outboxRange();
+        highestPublished.set(range[1]);
+        prunedUpTo = Math.max(0, range[0] - 1);
+        Map<Integer, Long> cursors = db.loadReplicationCursors();
+        for (int peerId : peerIds) {
+            if (peerId == ownerId)
+                continue;
+            // A peer new to this node starts at the current end (it has never been sent anything)
+            Long cursor = cursors.get(peerId);
+            Peer p = new Peer(peerId, (cursor != null) ? cursor : range[1]);
+            p.backoffMs = this.minBackoffMs;
+            peers.put(peerId, p);
+        }
+    }
+
+    // =================================================================
+    // PUBLISHING
+    // =================================================================
+
+    /**
+     * Call before a write that will produce an outbox record; pass the
+     * ticket to release() once the record is published (or not written).
+     */
+    public long reserve() {
+        long ticket = nextTicket.incrementAndGet();
+        openWrites.put(ticket, highestPublished.get());
+        return ticket;
+    }
+
+    public void release(long ticket) {
+        openWrites.remove(ticket);
+    }
+
+    /**
+     * Send a record that is already in replication_outbox (committed with
+     * its balance change).
+     *
+     * @param outboxId - its id; 0 if it could not be stored (then it is only
+     *                 streamed, with no replay)
+     * @return one future per peer, true once that peer has applied it
+     */
+    public List<CompletableFuture<Boolean>> publish(long outboxId, PeerMessage message) {
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+        if (outboxId <= 0) {
+            for (int peerId : peers.keySet())
+                acks.add(stream.apply(peerId, message));
+            return acks;
+        }
+        highestPublished.accumulateAndGet(outboxId, Math::max);
+        for (Peer p : peers.values())
+            acks.add(publishTo(p, outboxId, message));
+        return acks;
+    }
+
+    /**
+     * Completes once the peer has applied every record published so far
+     * (false if it was left to the full sync instead).
+     */
+    public CompletableFuture<Boolean> caughtUp(int peerId) {
+        Peer p = peers.get(peerId);
+        long head = highestPublished.get();
+        if (p == null)
+            return CompletableFuture.completedFuture(true);
+        p.lock.lock();
+        try {
+            if (p.acked >= head)
+                return CompletableFuture.completedFuture(true);
+            return addWaiter(p, head);
+        } finally {
+            p.lock.unlock();
+        }
+    }
+
+    private CompletableFuture<Boolean> publishTo(Peer p, long id, PeerMessage message) {
+        p.lock.lock();
+        try {
+            if (p.live && !isAvailable.test(p.peerId))
+                fallBehind(p, "unreachable");
+            if (p.live) {
+                if (id > p.switchPoint)
+                    return enqueue(p, id, message);
+                // Already sent by the replay that preceded going live
+            }
+            // Lagging (or sent by replay): done once the cursor passes it
+            if (p.acked >= id)
+                return CompletableFuture.completedFuture(true);
+            return addWaiter(p, id);
+        } finally {
+            p.lock.unlock();
+        }
+    }
+
+    // Caller holds p.lock. Done once the peer's cursor reaches id.
+    private static CompletableFuture<Boolean> addWaiter(Peer p, long id) {
+        CompletableFuture<Boolean> waiter = new CompletableFuture<>();
+        p.waiters.computeIfAbsent(id, k -> new ArrayList<>()).add(waiter);
+        if (++p.waiterCount > MAX_WAITERS) {
+            Map.Entry<Long, List<CompletableFuture<Boolean>>> oldest = p.waiters.pollFirstEntry();
+            p.waiterCount -= oldest.getValue().size();
+            for (CompletableFuture<Boolean> f : oldest.getValue())
+                f.complete(false);
+        }
+        return waiter;
+    }
+
+    // Caller holds p.lock
+    private CompletableFuture<Boolean> enqueue(Peer p, long id, PeerMessage message) {
+        long generation = p.generation;
+        p.pending.add(id);
+        CompletableFuture<Boolean> applied = stream.apply(p.peerId, message);
+        applied.whenComplete((ok, error) -> onStreamResult(p, generation, id, Boolean.TRUE.equals(ok)));
+        return applied;
+    }
+
+    private void onStreamResult(Peer p, long generation, long id, boolean applied) {
+        List<CompletableFuture<Boolean>> done = new ArrayList<>();
+        p.lock.lock();
+        try {
+            if (generation != p.generation)
+                return; // The peer fell behind since; replay owns it now
+            if (!applied) {
+                // Dropped from a full stream queue: the table still has it
+                fallBehind(p, "stream queue overflow");
+                return;
+            }
+            p.pending.remove(id);
+            p.completedMax = Math.max(p.completedMax, id);
+            long upTo = p.pending.isEmpty() ? p.completedMax : Math.min(p.completedMax, p.pending.first() - 1);
+            if (upTo > p.acked) {
+                p.acked = upTo;
+                p.backoffMs = minBackoffMs;
+                // Waiters for records this peer got through replay
+                takeWaiters(p, upTo, done);
+            }
+        } finally {
+            p.lock.unlock();
+        }
+        for (CompletableFuture<Boolean> f : done)
+            f.complete(true);
+    }
+
+    // Caller holds p.lock
+    private static void takeWaiters(Peer p, long upTo, List<CompletableFuture<Boolean>> into) {
+        Map<Long, List<CompletableFuture<Boolean>>> reached = p.waiters.headMap(upTo, true);
+        for (List<CompletableFuture<Boolean>> list : reached.values()) {
+            into.addAll(list);
+            p.waiterCount -= list.size();
+        }
+        reached.clear();
+    }
+
+    // Caller holds p.lock
+    private void fallBehind(Peer p, String reason) {
+        if (p.live)
+            System.out.println("⏪ Outbox: peer " + p.peerId + " lagging (" + reason + "), replaying from #"
+                    + Math.min(p.acked, publishFloor()));
+        p.live = false;
+        p.generation++;
+        p.pending.clear();
+        p.completedMax = p.acked;
+        p.enqueuedUpTo = Math.min(p.acked, publishFloor());
+        p.nextAttemptAt = System.currentTimeMillis() + p.backoffMs;
+    }
+
+    // Every id at or below this has been published (or was never written)
+    private long publishFloor() {
+        long floor = Long.MAX_VALUE;
+        for (long published : openWrites.values())
+            floor = Math.min(floor, published);
+        return floor;
+    }
+
+    // =================================================================
+    // REPLAY, CURSORS, PRUNING (periodic)
+    // =================================================================
+
+    /**
+     * Feed lagging peers from the table, persist cursors and prune. Called
+     * every TICK_MS from the node's scheduler.
+     */
+    public void tick() {
+        long now = System.currentTimeMillis();
+        long floor = publishFloor();
+        long pruneTo = Long.MAX_VALUE;
+        for (Peer p : peers.values()) {
+            long cursor;
+            p.lock.lock();
+            try {
+                if (p.unreachable && isAvailable.test(p.peerId)) {
+                    // Back: replay now instead of sitting out the rest of the backoff
+                    p.unreachable = false;
+                    p.backoffMs = minBackoffMs;
+                    p.nextAttemptAt = now;
+                }
+                if (!p.live && now >= p.nextAttemptAt)
+                    replayStep(p, now);
+                cursor = Math.min(p.acked, floor);
+            } finally {
+                p.lock.unlock();
+            }
+            if (cursor > p.savedCursor) {
+                db.saveReplicationCursor(p.peerId, cursor);
+                p.savedCursor = cursor;
+            }
+            pruneTo = Math.min(pruneTo, cursor);
+        }
+        if (pruneTo == Long.MAX_VALUE)
+            pruneTo = Math.min(highestPublished.get(), floor); // No peers: nothing to keep
+        pruneTo = Math.max(pruneTo, highestPublished.get() - maxRows);
+        if (pruneTo > prunedUpTo) {
+            db.pruneOutbox(pruneTo);
+            prunedUpTo = pruneTo;
+        }
+    }
+
+    // Caller holds p.lock. Publishers to this peer wait for the read; it only runs while p lags.
+    private void replayStep(Peer p, long now) {
+        if (!isAvailable.test(p.peerId)) {
+            p.unreachable = true;
+            p.nextAttemptAt = now + p.backoffMs;
+            p.backoffMs = Math.min(p.backoffMs * 2, maxBackoffMs);
+            return;
+        }
+        if (p.pending.size() >= batchSize)
+            return; // Previous batch still in flight
+        if (p.enqueuedUpTo < prunedUpTo) {
+            System.out.println("⚠️ Outbox: peer " + p.peerId + " missed pruned records up to #" + prunedUpTo
+                    + "; left to the full sync");
+            p.enqueuedUpTo = prunedUpTo;
+            p.acked = Math.max(p.acked, prunedUpTo);
+            p.completedMax = Math.max(p.completedMax, p.acked);
+            List<CompletableFuture<Boolean>> skipped = new ArrayList<>();
+            takeWaiters(p, prunedUpTo, skipped);
+            for (CompletableFuture<Boolean> f : skipped)
+                f.complete(false);
+        }
+
+        List<Database.OutboxRecord> records = db.readOutbox(p.enqueuedUpTo, batchSize);
+        for (Database.OutboxRecord r : records) {
+            PeerMessage message;
+            try {
+                message = WireCodec.decode(ByteBuffer.wrap(r.payload));
+            } catch (ProtocolException e) {
+                System.out.println("⚠️ Outbox: skipping malformed record #" + r.id + ": " + e.getMessage());
+                message = null;
+            }
+            if (message != null)
+                enqueue(p, r.id, message);
+            else
+                p.acked = Math.max(p.acked, r.id); // Unreadable record: nothing to send
+            p.enqueuedUpTo = r.id;
+        }
+        if (records.size() < batchSize) {
+            // Caught up. Publishers wait on p.lock, so nothing committed after this read is missed.
+            p.live = true;
+            p.switchPoint = p.enqueuedUpTo;
+            p.backoffMs = minBackoffMs;
+            if (!records.isEmpty())
+                System.out.println("✅ Outbox: peer " + p.peerId + " caught up at #" + p.enqueuedUpTo);
+        }
+    }
+
+    // =================================================================
+    // METRICS
+    // =================================================================
+
+    /**
+     * Published records each peer has not applied yet.
+     */
+    public Map<Integer, Long> lag() {
+        Map<Integer, Long> lag = new TreeMap<>();
+        long head = highestPublished.get();
+        for (Peer p : peers.values())
+            lag.put(p.peerId, Math.max(0, head - p.acked));
+        return lag;
+    }
+
+    public List<Integer> laggingPeers() {
+        List<Integer> lagging = new ArrayList<>();
+        for (Peer p : peers.values()) {
+            if (!p.live)
+                lagging.add(p.peerId);
+        }
+        Collections.sort(lagging);
+        return lagging;
+    }
+
+    private static final class Peer {
+        final int peerId;
+        // Delivery may block on the database; an explicit lock so a virtual thread doesn't pin
+        final ReentrantLock lock = new ReentrantLock();
+        boolean live; // Starts lagging: the first replay decides what it missed
+        long generation; // Bumped when the peer falls behind; stale stream results are ignored
+        long acked; // Every record up to here is applied on the peer
+        long completedMax;
+        long enqueuedUpTo; // Replay position
+        long switchPoint; // Records up to here were sent by replay
+        final TreeSet<Long> pending = new TreeSet<>(); // On the stream, not applied yet
+        final TreeMap<Long, List<CompletableFuture<Boolean>>> waiters = new TreeMap<>();
+        int waiterCount;
+        long nextAttemptAt;
+        long backoffMs;
+        boolean unreachable; // Last replay attempt found it DEAD
+        volatile long savedCursor = -1;
+
+        Peer(int peerId, long cursor) {
+            this.peerId = peerId;
+            this.acked = cursor;
+            this.completedMax = cursor;
+            this.enqueuedUpTo = cursor;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package banking;
 
+import algorithm.NodeConfig;
 import bank.ATMNode;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,6 +39,9 @@ public class ATMApp {
             return;
         }
 
+        // Node tunables (non-numeric keys, e.g. wire.format)
+        NodeConfig.load(props);
+
         // 2. Parse Peer Nodes (NO MORE CENTRAL SERVER!)
         ConcurrentHashMap<Integer, InetSocketAddress> allNodes = new ConcurrentHashMap<>();
         for (String key : props.stringPropertyNames()) {
@@ -81,8 +81,9 @@ public class ATMFrame extends JFrame {
 
         // Run in background to avoid freezing GUI
         new Thread(() -> {
-            atmNode.setOperationDetails(action, currentUserId, amountField.getText(), targetUserField.getText());
-            atmNode.requestAccess(currentUserId);
+            String result = atmNode.executeOperation(action, currentUserId, amountField.getText(),
+                    targetUserField.getText());
+            log(action + ": " + result);
             // GUI Update happens after Critical Section via callback or just refreshing
             // balance
             SwingUtilities.invokeLater(this::updateBalance);
@@ -1,5 +1,6 @@
 package banking;
 
+import algorithm.NodeExecutors;
 import bank.ATMNode;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
@@ -39,7 +40,8 @@ public class ATMWebServer {
         server.createContext("/api/admin/users", new AdminUsersHandler());
         server.createContext("/api/admin/stats", new AdminStatsHandler());
 
-        server.setExecutor(null);
+        // Platform pool, or one virtual thread per request when exec.mode=virtual
+        server.setExecutor(NodeExecutors.newTaskExecutor("Web-" + port, 32));
         server.start();
         System.out.println(">>> Web Server started at http://localhost:" + port + " <<<");
     }
@@ -143,9 +145,10 @@ public class ATMWebServer {
                 System.out.println("WEB API: Received " + type + " for " + user);
 
                 // API Level Validation
-                double valAmt = 0;
+                // Parsed once into cents; the long goes through the CS and onto the wire
+                long valAmt = 0;
                 try {
-                    valAmt = Double.parseDouble(amount);
+                    valAmt = bank.Money.parse(amount);
                     if (valAmt <= 0) {
                         throw new NumberFormatException("Negative amount");
                     }
@@ -158,24 +161,26 @@ public class ATMWebServer {
                     return;
                 }
 
-                // Synchronize to prevent race conditions on the single ATMNode instance
-                String response;
-                synchronized (atmNode) {
-                    atmNode.setOperationDetails(type, user, amount, target);
-                    // BLOCKING CALL: Waits for Distributed Mutual Exclusion & Execution
-                    atmNode.requestAccess(user);
-                    response = atmNode.getLastTransactionResult();
-                }
-
-                // If response is empty (e.g. timeout without execution), set default
-                if (response == null || response.isEmpty()) {
-                    response = "ERROR:TIMEOUT_OR_FAILED";
-                }
-
-                t.sendResponseHeaders(200, response.length());
-                OutputStream os = t.getResponseBody();
-                os.write(response.getBytes());
-                os.close();
+                // NON-BLOCKING: the HTTP thread returns now; the response is written
+                // when the distributed lock round and the operation have finished.
+                // Locks only this user's account, so other customers run concurrently.
+                atmNode.executeOperationAsync(type, user, valAmt, target).whenComplete((result, error) -> {
+                    String response = result;
+                    // If response is empty (e.g. timeout without execution), set default
+                    if (error != null || response == null || response.isEmpty()) {
+                        response = "ERROR:TIMEOUT_OR_FAILED";
+                    }
+                    try {
+                        t.sendResponseHeaders(200, response.length());
+                        OutputStream os = t.getResponseBody();
+                        os.write(response.getBytes());
+                        os.close();
+                    } catch (IOException e) {
+                        System.err.println("WEB API: Client went away before " + type + " finished: "
+                                + e.getMessage());
+                        t.close();
+                    }
+                });
             }
         }
 
@@ -311,9 +316,11 @@ public class ATMWebServer {
                         .append("\"timestamp\":\"").append(tx.timestamp).append("\",")
                         .append("\"type\":\"").append(tx.type).append("\",")
                         .append("\"user\":\"").append(tx.userId).append("\",")
-                        .append("\"amount\":\"").append(tx.amount).append("\",")
+                        .append("\"amount\":\"");
+                bank.Money.appendTo(json, tx.amount).append("\",")
                         .append("\"target\":\"").append(tx.targetId).append("\",")
-                        .append("\"node\":").append(tx.nodeId)
+                        .append("\"node\":").append(tx.nodeId).append(",")
+                        .append("\"hlc\":\"").append(algorithm.HybridClock.format(tx.hlc)).append("\"")
                         .append("}");
                 if (i < logs.size() - 1)
                     json.append(",");
@@ -347,8 +354,8 @@ public class ATMWebServer {
                 json.append("{")
                         .append("\"id\":\"").append(acc.id).append("\",")
                         .append("\"name\":\"").append(acc.name).append("\",")
-                        .append("\"balance\":").append(acc.balance)
-                        .append("}");
+                        .append("\"balance\":");
+                bank.Money.appendTo(json, acc.balance).append("}");
                 if (i < customers.size() - 1)
                     json.append(",");
             }
@@ -369,7 +376,7 @@ public class ATMWebServer {
             // Use cluster-wide transactions for stats
             java.util.List<bank.Database.Transaction> logs = atmNode.getAllClusterTransactions();
 
-            long totalReserves = 0;
+            long totalReserves = 0; // Cents
             int customerCount = 0;
             for (bank.Database.Account acc : allUsers) {
                 // Statistics should ONLY include regular users
@@ -382,9 +389,35 @@ public class ATMWebServer {
             StringBuilder json = new StringBuilder();
             json.append("{")
                     .append("\"totalUsers\":").append(customerCount).append(",")
-                    .append("\"totalReserves\":").append(totalReserves).append(",")
-                    .append("\"totalTransactions\":").append(logs.size())
-                    .append("}");
+                    .append("\"totalReserves\":");
+            bank.Money.appendTo(json, totalReserves).append(",")
+                    .append("\"totalTransactions\":").append(logs.size()).append(",")
+                    .append("\"shedRequests\":")
+                    .append(atmNode.getAdmission().rejectedCount(algorithm.AdmissionControl.Lane.BULK)).append(",")
+                    .append("\"accountCacheHits\":").append(atmNode.getLocalDB().getAccountCache().hitCount()).append(",")
+                    .append("\"accountCacheMisses\":").append(atmNode.getLocalDB().getAccountCache().missCount()).append(",")
+                    .append("\"avgCommitBatch\":").append(atmNode.getLocalDB().getAverageCommitBatch()).append(",")
+                    .append("\"replicationQueues\":{");
+            boolean firstPeer = true;
+            for (java.util.Map.Entry<Integer, Integer> q : atmNode.getReplication().queueDepths().entrySet()) {
+                if (!firstPeer)
+                    json.append(",");
+                json.append("\"").append(q.getKey()).append("\":").append(q.getValue());
+                firstPeer = false;
+            }
+            json.append("},")
+                    .append("\"replicationDropped\":").append(atmNode.getReplication().droppedCount()).append(",")
+                    .append("\"replicationResent\":").append(atmNode.getReplication().resentCount()).append(",")
+                    .append("\"replicationRejected\":").append(atmNode.getReplication().rejectedCount()).append(",")
+                    .append("\"replicationLag\":{");
+            firstPeer = true;
+            for (java.util.Map.Entry<Integer, Long> lag : atmNode.getOutbox().lag().entrySet()) {
+                if (!firstPeer)
+                    json.append(",");
+                json.append("\"").append(lag.getKey()).append("\":").append(lag.getValue());
+                firstPeer = false;
+            }
+            json.append("}}");
 
             byte[] bytes = json.toString().getBytes("UTF-8");
             t.sendResponseHeaders(200, bytes.length);